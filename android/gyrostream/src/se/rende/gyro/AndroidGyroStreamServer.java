@@ -74,6 +74,13 @@ public class AndroidGyroStreamServer implements MessageListener {
 		gyroStreamServer.writeLine(line);
 	}
 
+	/**
+	 * @see GyroStreamServer#getStats()
+	 */
+	public String getStats() {
+		return gyroStreamServer.getStats();
+	}
+
 	public int getPort() {
 		return port;
 	}
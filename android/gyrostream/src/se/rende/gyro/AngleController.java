@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Single stage controller, one PID per axis from attitude error straight to
+ * force, at the control rate. Pitch and roll are taken straight from the
+ * quaternion, as the sine approximations of NexterUtil.tiltPitch and
+ * tiltRoll are close enough for the small angles of controlled flight.
+ * @author dag
+ *
+ */
+public class AngleController implements FlightController {
+	private final PIDdata[] pid;
+
+	/**
+	 * @param pid PITCH and ROLL are used, with the gyro gains gp, gi, gd and gw
+	 */
+	public AngleController(PIDdata[] pid) {
+		this.pid = pid;
+	}
+
+	public void init() {
+		for (PIDdata axis : pid) {
+			axis.reset();
+		}
+	}
+
+	public void rate(FlightParameters parameters, double rollRate, double pitchRate, double yawRate, double dT) {
+	}
+
+	public void control(FlightParameters parameters, double[] q, double pitchCmd, double rollCmd, double yawCmd,
+			double dT, double[] force) {
+		PIDGains gains = parameters.getGyroGains();
+		force[PITCH] = pid[PITCH].update(gains, pitchCmd, -NexterUtil.tiltPitch(q), dT);
+		force[ROLL] = pid[ROLL].update(gains, rollCmd, NexterUtil.tiltRoll(q), dT);
+		force[YAW] = 0;
+	}
+}
@@ -30,9 +30,11 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -40,8 +42,10 @@ import android.util.Log;
  * connections with other devices. It has a thread that listens for incoming
  * connections, a thread for connecting with a device, and a thread for
  * performing data transmissions when connected.
+ * <p>
+ * As a MotorLink it carries motor frames and telemetry over RFCOMM.
  */
-public class BluetoothService {
+public class BluetoothService implements MotorLink {
 	// Message types sent to the Handler
 	public static final int MESSAGE_STATE_CHANGE = 1;
 	public static final int MESSAGE_READ = 2;
@@ -61,12 +65,31 @@ public class BluetoothService {
 	private static final UUID MY_UUID = UUID
 			.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+	// largest frame for write(byte[], int, int)
+	private static final int MAX_FRAME = 64;
+
+	// pref key of the address of the last connected device
+	private static final String LAST_DEVICE_ADDRESS = "lastDeviceAddress";
+	// wait before each reconnect attempt, the last repeated, short to get
+	// back within the 2s esc-control watchdog
+	private static final long[] RECONNECT_DELAYS_MS = { 0, 50, 100, 200, 400, 500 };
+	// give up reconnecting after this long, well past the watchdog cutting the motors
+	private static final long RECONNECT_TIMEOUT_MS = 10000;
+
 	// Member fields
 	private final BluetoothAdapter mAdapter;
 	private final Handler mHandler;
 	private ConnectThread mConnectThread;
-	private ConnectedThread mConnectedThread;
-	private BluetoothServiceState mState;
+	private volatile ConnectedThread mConnectedThread;
+	private volatile BluetoothServiceState mState;
+	private volatile TelemetryDecoder.Listener mTelemetryListener;
+	private final SharedPreferences mPrefs;
+	// nanoTime when the connection was lost, 0 when not reconnecting
+	private long mReconnectStart;
+	private int mReconnectAttempt;
+	private final Histogram mReconnectTimes = new Histogram(); // ms
+	private volatile long mReconnectAttempts;
+	private volatile long mReconnectGiveUps;
 
 	// Constants that indicate the current connection state
 	enum BluetoothServiceState {
@@ -89,6 +112,23 @@ public class BluetoothService {
 		mAdapter = BluetoothAdapter.getDefaultAdapter();
 		mState = BluetoothServiceState.NONE;
 		mHandler = handler;
+		mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+	}
+
+	/**
+	 * Connect to the device last connected, in this or an earlier run,
+	 * without discovery.
+	 * 
+	 * @return false if there is no such device
+	 */
+	public boolean connectLastDevice() {
+		String address = mPrefs.getString(LAST_DEVICE_ADDRESS, null);
+		if (address == null || mAdapter == null
+				|| !BluetoothAdapter.checkBluetoothAddress(address)) {
+			return false;
+		}
+		connect(mAdapter.getRemoteDevice(address));
+		return true;
 	}
 
 	/**
@@ -161,8 +201,10 @@ public class BluetoothService {
 			mConnectedThread = null;
 		}
 
+		mReconnectStart = 0;
+
 		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(device);
+		mConnectThread = new ConnectThread(device, 0);
 		mConnectThread.start();
 		setState(BluetoothServiceState.CONNECTING);
 	}
@@ -193,9 +235,16 @@ public class BluetoothService {
 		}
 
 		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket);
+		mConnectedThread = new ConnectedThread(socket, device);
 		mConnectedThread.start();
 
+		if (mReconnectStart != 0) {
+			mReconnectTimes.record((System.nanoTime() - mReconnectStart) / 1000000);
+			mReconnectStart = 0;
+		}
+		// apply() writes to disk in the background, this method holds the lock
+		mPrefs.edit().putString(LAST_DEVICE_ADDRESS, device.getAddress()).apply();
+
 		// Send the name of the connected device back to the UI Activity
 		Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
 		Bundle bundle = new Bundle();
@@ -206,12 +255,24 @@ public class BluetoothService {
 		setState(BluetoothServiceState.CONNECTED);
 	}
 
+	public boolean isConnected() {
+		return mState == BluetoothServiceState.CONNECTED && mConnectedThread != null;
+	}
+
+	/**
+	 * Same as stop().
+	 */
+	public void close() {
+		stop();
+	}
+
 	/**
 	 * Stop all threads
 	 */
 	public synchronized void stop() {
 		if (D)
 			Log.d(TAG, "stop");
+		mReconnectStart = 0;
 		if (mConnectThread != null) {
 			mConnectThread.cancel();
 			mConnectThread = null;
@@ -244,9 +305,91 @@ public class BluetoothService {
 	}
 
 	/**
-	 * Indicate that the connection attempt failed and notify the UI Activity.
+	 * Queues len bytes of out from offset to be written by the writer
+	 * thread, replacing a frame still waiting there, and returns at once.
+	 * The caller may reuse out as soon as this returns. Unlike
+	 * write(byte[]) the bytes are not echoed to the UI Activity.
+	 */
+	public void write(byte[] out, int offset, int len) {
+		// no lock, a connect or stop in progress must not hold up the caller
+		ConnectedThread r = mConnectedThread;
+		if (mState != BluetoothServiceState.CONNECTED || r == null)
+			return;
+		r.write(out, offset, len);
+	}
+
+	/**
+	 * @return number of frames from write(byte[], int, int) written in this
+	 *         connection
+	 */
+	public long getWrittenFrameCount() {
+		ConnectedThread r = mConnectedThread;
+		return r != null ? r.mmWriter.getWrittenCount() : 0;
+	}
+
+	/**
+	 * @return number of frames from write(byte[], int, int) replaced by a
+	 *         newer one before they were written in this connection
+	 */
+	public long getDroppedFrameCount() {
+		ConnectedThread r = mConnectedThread;
+		return r != null ? r.mmWriter.getDroppedCount() : 0;
+	}
+
+	/**
+	 * @return latency and throughput of the current connection, or null if
+	 *         not connected
+	 */
+	public LinkStats getLinkStats() {
+		ConnectedThread r = mConnectedThread;
+		return r != null ? r.mmLinkStats : null;
+	}
+
+	/**
+	 * Set the receiver of esc-control telemetry. It is called on the connected
+	 * thread, and text lines go to it instead of to the UI Handler.
+	 * @param listener null to send text lines to the UI Handler as MESSAGE_READ
+	 */
+	public void setTelemetryListener(TelemetryDecoder.Listener listener) {
+		mTelemetryListener = listener;
+	}
+
+	/**
+	 * @return number of valid telemetry frames read in this connection
+	 */
+	public long getTelemetryFrameCount() {
+		ConnectedThread r = mConnectedThread;
+		return r != null ? r.mmDecoder.getFrameCount() : 0;
+	}
+
+	/**
+	 * @return number of bytes dropped as bad telemetry in this connection
+	 */
+	public long getTelemetryErrorCount() {
+		ConnectedThread r = mConnectedThread;
+		return r != null ? r.mmDecoder.getErrorCount() : 0;
+	}
+
+	/**
+	 * Try again if reconnecting for less than RECONNECT_TIMEOUT_MS, else
+	 * indicate that the connection attempt failed and notify the UI Activity.
 	 */
-	private void connectionFailed() {
+	private synchronized void connectionFailed(ConnectThread thread, BluetoothDevice device) {
+		if (mConnectThread != thread) {
+			// cancelled by stop() or another connect
+			return;
+		}
+		mConnectThread = null;
+		if (mReconnectStart != 0) {
+			if ((System.nanoTime() - mReconnectStart) / 1000000 < RECONNECT_TIMEOUT_MS) {
+				reconnect(device);
+				return;
+			}
+			if (D)
+				Log.d(TAG, "reconnect given up after " + mReconnectAttempt + " attempts");
+			mReconnectStart = 0;
+			mReconnectGiveUps++;
+		}
 		setState(BluetoothServiceState.LISTEN);
 
 		// Send a failure message back to the Activity
@@ -255,20 +398,57 @@ public class BluetoothService {
 		bundle.putString(TOAST, "Unable to connect device");
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
+
+		// Start the service over to restart listening mode
+		start();
 	}
 
 	/**
-	 * Indicate that the connection was lost and notify the UI Activity.
+	 * Reconnect to the device, and notify the UI Activity.
 	 */
-	private void connectionLost() {
-		setState(BluetoothServiceState.LISTEN);
+	private synchronized void connectionLost(ConnectedThread thread, BluetoothDevice device) {
+		if (mConnectedThread != thread) {
+			// closed by stop() or another connect
+			return;
+		}
+		mConnectedThread = null;
+		// free the rfcomm channel for the reconnect
+		thread.cancel();
 
 		// Send a failure message back to the Activity
 		Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
 		Bundle bundle = new Bundle();
-		bundle.putString(TOAST, "Device connection was lost");
+		bundle.putString(TOAST, "Device connection was lost, reconnecting");
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
+
+		mReconnectStart = System.nanoTime();
+		mReconnectAttempt = 0;
+		reconnect(device);
+	}
+
+	/**
+	 * Start the next reconnect attempt after its delay, until connected,
+	 * RECONNECT_TIMEOUT_MS has passed or stop() or connect() is called.
+	 */
+	private synchronized void reconnect(BluetoothDevice device) {
+		long delay = RECONNECT_DELAYS_MS[Math.min(mReconnectAttempt, RECONNECT_DELAYS_MS.length - 1)];
+		mReconnectAttempt++;
+		mReconnectAttempts++;
+		if (D)
+			Log.d(TAG, "reconnect attempt " + mReconnectAttempt + " in " + delay + "ms");
+		mConnectThread = new ConnectThread(device, delay);
+		mConnectThread.start();
+		setState(BluetoothServiceState.CONNECTING);
+	}
+
+	/**
+	 * Returns a string with stat name value\n for reconnects.
+	 */
+	public String getStats() {
+		return "stat reconnectMs " + mReconnectTimes + "\n"
+				+ "stat reconnectAttempts " + mReconnectAttempts + "\n"
+				+ "stat reconnectGiveUps " + mReconnectGiveUps + "\n";
 	}
 
 	/**
@@ -279,9 +459,11 @@ public class BluetoothService {
 	private class ConnectThread extends Thread {
 		private final BluetoothSocket mmSocket;
 		private final BluetoothDevice mmDevice;
+		private final long mmDelayMs;
 
-		public ConnectThread(BluetoothDevice device) {
+		public ConnectThread(BluetoothDevice device, long delayMs) {
 			mmDevice = device;
+			mmDelayMs = delayMs;
 			BluetoothSocket tmp = null;
 
 			// Get a BluetoothSocket for a connection with the
@@ -298,31 +480,47 @@ public class BluetoothService {
 			Log.i(TAG, "BEGIN mConnectThread");
 			setName("ConnectThread");
 
+			if (mmDelayMs > 0) {
+				try {
+					Thread.sleep(mmDelayMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
 			// Always cancel discovery because it will slow down a connection
 			mAdapter.cancelDiscovery();
 
 			// Make a connection to the BluetoothSocket
 			try {
+				if (mmSocket == null) {
+					throw new IOException("no socket");
+				}
 				// This is a blocking call and will only return on a
 				// successful connection or an exception
 				mmSocket.connect();
 			} catch (IOException e) {
-				connectionFailed();
 				// Close the socket
 				try {
-					mmSocket.close();
+					if (mmSocket != null) {
+						mmSocket.close();
+					}
 				} catch (IOException e2) {
 					Log.e(TAG,
 							"unable to close() socket during connection failure",
 							e2);
 				}
-				// Start the service over to restart listening mode
-				BluetoothService.this.start();
+				connectionFailed(this, mmDevice);
 				return;
 			}
 
 			// Reset the ConnectThread because we're done
 			synchronized (BluetoothService.this) {
+				if (mConnectThread != this) {
+					// cancelled while connecting
+					cancel();
+					return;
+				}
 				mConnectThread = null;
 			}
 
@@ -332,7 +530,9 @@ public class BluetoothService {
 
 		public void cancel() {
 			try {
-				mmSocket.close();
+				if (mmSocket != null) {
+					mmSocket.close();
+				}
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
@@ -345,12 +545,17 @@ public class BluetoothService {
 	 */
 	private class ConnectedThread extends Thread {
 		private final BluetoothSocket mmSocket;
+		private final BluetoothDevice mmDevice;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private final LatestFrameWriter mmWriter;
+		private final TelemetryDecoder mmDecoder;
+		private final LinkStats mmLinkStats = new LinkStats();
 
-		public ConnectedThread(BluetoothSocket socket) {
+		public ConnectedThread(BluetoothSocket socket, BluetoothDevice device) {
 			Log.d(TAG, "create ConnectedThread");
 			mmSocket = socket;
+			mmDevice = device;
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
@@ -364,10 +569,35 @@ public class BluetoothService {
 
 			mmInStream = tmpIn;
 			mmOutStream = tmpOut;
+			mmWriter = new LatestFrameWriter(tmpOut, MAX_FRAME, mmLinkStats);
+			mmDecoder = new TelemetryDecoder();
+			mmDecoder.setListener(new TelemetryDecoder.Listener() {
+				public void telemetryReceived(TelemetryDecoder.Telemetry telemetry) {
+					mmLinkStats.ackReceived(telemetry.seq, telemetry.receiveTime);
+					TelemetryDecoder.Listener listener = mTelemetryListener;
+					if (listener != null) {
+						listener.telemetryReceived(telemetry);
+					}
+				}
+
+				public void textReceived(byte[] line, int length) {
+					TelemetryDecoder.Listener listener = mTelemetryListener;
+					if (listener != null) {
+						listener.textReceived(line, length);
+					} else {
+						// the handler runs later, give it a copy
+						byte[] copy = new byte[length];
+						System.arraycopy(line, 0, copy, 0, length);
+						mHandler.obtainMessage(MESSAGE_READ, length, -1, copy)
+								.sendToTarget();
+					}
+				}
+			});
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectedThread");
+			mmWriter.start();
 			byte[] buffer = new byte[1024];
 			int bytes;
 
@@ -377,12 +607,18 @@ public class BluetoothService {
 					// Read from the InputStream
 					bytes = mmInStream.read(buffer);
 
-					// Send the obtained bytes to the UI Activity
-					mHandler.obtainMessage(MESSAGE_READ, bytes, -1, buffer)
-							.sendToTarget();
+					if (bytes > 0) {
+						mmLinkStats.bytesRead(bytes, System.nanoTime());
+						// frames go to the telemetry listener, text lines to the UI Activity
+						mmDecoder.feed(buffer, 0, bytes);
+					}
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
-					connectionLost();
+					if (mmWriter.getFailure() != null) {
+						Log.e(TAG, "frame write failed", mmWriter.getFailure());
+					}
+					mmWriter.stop();
+					connectionLost(this, mmDevice);
 					break;
 				}
 			}
@@ -396,7 +632,12 @@ public class BluetoothService {
 		 */
 		public void write(byte[] buffer) {
 			try {
-				mmOutStream.write(buffer);
+				long start = System.nanoTime();
+				mmLinkStats.frameWriting(buffer, 0, buffer.length, start);
+				synchronized (mmOutStream) {
+					mmOutStream.write(buffer);
+				}
+				mmLinkStats.frameWritten(buffer.length, start, System.nanoTime());
 
 				// Share the sent message back to the UI Activity
 				mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer)
@@ -406,7 +647,15 @@ public class BluetoothService {
 			}
 		}
 
+		/**
+		 * Hand part of a buffer to the writer thread, newest wins.
+		 */
+		public void write(byte[] buffer, int offset, int len) {
+			mmWriter.offer(buffer, offset, len);
+		}
+
 		public void cancel() {
+			mmWriter.stop();
 			try {
 				mmSocket.close();
 			} catch (IOException e) {
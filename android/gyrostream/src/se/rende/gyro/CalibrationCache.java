@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.hardware.Sensor;
+import android.os.Build;
+
+/**
+ * Keeps the last sensor zero offsets in the android prefs, so that a restart
+ * only has to check them instead of calibrating from scratch.
+ * <p>
+ * The offsets are stored with a fingerprint of the handset and its sensors and
+ * the time they were found. They are only handed out for the same
+ * fingerprint and while not too old.
+ * @author dag
+ *
+ */
+public class CalibrationCache {
+	private static final String PREFIX = "calibration.";
+	private static final String FINGERPRINT = PREFIX + "fingerprint";
+	private static final String TIME = PREFIX + "time";
+	private static final String ACCEL = PREFIX + "accel";
+	private static final String GYRO = PREFIX + "gyro";
+	private final SharedPreferences prefs;
+
+	public CalibrationCache(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+
+	/**
+	 * Returns a string that changes if the handset, its firmware or one of
+	 * the sensors changes.
+	 */
+	public static String fingerprint(Sensor accelerometer, Sensor gyroscope) {
+		return Build.FINGERPRINT + "|" + describe(accelerometer) + "|" + describe(gyroscope);
+	}
+
+	private static String describe(Sensor sensor) {
+		if (sensor == null) {
+			return "none";
+		}
+		return sensor.getVendor() + " " + sensor.getName() + " " + sensor.getVersion();
+	}
+
+	/**
+	 * Copies the cached offsets to accelZero and gyroZero.
+	 * @param fingerprint as from fingerprint()
+	 * @param maxAge how old in ms the offsets may be
+	 * @return false, leaving the arrays alone, if there are no offsets for
+	 * fingerprint or they are too old
+	 */
+	public boolean load(String fingerprint, long maxAge, double[] accelZero, double[] gyroZero) {
+		if (!fingerprint.equals(prefs.getString(FINGERPRINT, null))) {
+			return false;
+		}
+		long age = System.currentTimeMillis() - prefs.getLong(TIME, 0);
+		if (age < 0 || age > maxAge) {
+			return false;
+		}
+		double[] accel = new double[accelZero.length];
+		double[] gyro = new double[gyroZero.length];
+		try {
+			for (int i = 0; i < accel.length; i++) {
+				accel[i] = Double.parseDouble(prefs.getString(ACCEL + i, null));
+			}
+			for (int i = 0; i < gyro.length; i++) {
+				gyro[i] = Double.parseDouble(prefs.getString(GYRO + i, null));
+			}
+		} catch (RuntimeException e) {
+			// missing or garbled, as good as no cache
+			return false;
+		}
+		System.arraycopy(accel, 0, accelZero, 0, accel.length);
+		System.arraycopy(gyro, 0, gyroZero, 0, gyro.length);
+		return true;
+	}
+
+	/**
+	 * Stores offsets found now for fingerprint.
+	 */
+	public void save(String fingerprint, double[] accelZero, double[] gyroZero) {
+		Editor edit = prefs.edit();
+		edit.putString(FINGERPRINT, fingerprint);
+		edit.putLong(TIME, System.currentTimeMillis());
+		for (int i = 0; i < accelZero.length; i++) {
+			edit.putString(ACCEL + i, Double.toString(accelZero[i]));
+		}
+		for (int i = 0; i < gyroZero.length; i++) {
+			edit.putString(GYRO + i, Double.toString(gyroZero[i]));
+		}
+		// called on the control thread, so write to disk in the background
+		edit.apply();
+	}
+
+	/**
+	 * Forgets the offsets, so that the next start calibrates from scratch.
+	 */
+	public void clear() {
+		Editor edit = prefs.edit();
+		edit.remove(FINGERPRINT);
+		edit.remove(TIME);
+		edit.apply();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Two stage controller. The outer angle loop runs at the control rate and
+ * turns attitude error into a rate setpoint, with its derivative taken from
+ * the measured gyro rate. The inner rate loop runs on every gyro sample and
+ * turns rate error into force, so it reacts to a disturbance as soon as the
+ * gyro sees it instead of after the estimator has turned it into an angle.
+ * Its derivative is low pass filtered, as the gyro is differenced at the
+ * full, jittery sensor rate.
+ * <p>
+ * The forces sent are those of the newest gyro sample when control() runs,
+ * with the proportional response to the setpoint just calculated, so a stick
+ * or angle change reaches the motors in the same control cycle.
+ * @author dag
+ *
+ */
+public class CascadedController implements FlightController {
+	private final PIDdata[] anglePID;
+	private final PIDdata[] ratePID;
+	private final double[] rateSetpoint = new double[3];
+	private final double[] rate = new double[3]; // in the signs of the measured angles
+	private final double[] rateForce = new double[3];
+	private final double[] rateForceSetpoint = new double[3]; // rateSetpoint that rateForce was calculated for
+
+	/**
+	 * @param anglePID outer loop, PITCH and ROLL are used, with the stick gains sp, si, sd and sw
+	 * @param ratePID inner loop, PITCH and ROLL are used, with the gyro gains gp, gi, gd and gw
+	 */
+	public CascadedController(PIDdata[] anglePID, PIDdata[] ratePID) {
+		this.anglePID = anglePID;
+		this.ratePID = ratePID;
+	}
+
+	public void init() {
+		for (int axis = 0; axis < 3; axis++) {
+			anglePID[axis].reset();
+			ratePID[axis].reset();
+			rateSetpoint[axis] = 0;
+			rate[axis] = 0;
+			rateForce[axis] = 0;
+			rateForceSetpoint[axis] = 0;
+		}
+	}
+
+	public void rate(FlightParameters parameters, double rollRate, double pitchRate, double yawRate, double dT) {
+		if (dT <= 0) {
+			return;
+		}
+		// the pitch angle controlled is -tiltPitch, see AngleController
+		rate[PITCH] = -pitchRate;
+		rate[ROLL] = rollRate;
+		PIDGains gains = parameters.getGyroGains();
+		for (int axis = PITCH; axis <= ROLL; axis++) {
+			rateForce[axis] = ratePID[axis].updateOnMeasurement(gains, rateSetpoint[axis], rate[axis], dT);
+			rateForceSetpoint[axis] = rateSetpoint[axis];
+		}
+	}
+
+	public void control(FlightParameters parameters, double[] q, double pitchCmd, double rollCmd, double yawCmd,
+			double dT, double[] force) {
+		PIDGains gains = parameters.getStickGains();
+		rateSetpoint[PITCH] = anglePID[PITCH].update(gains, pitchCmd, -NexterUtil.tiltPitch(q), rate[PITCH], dT);
+		rateSetpoint[ROLL] = anglePID[ROLL].update(gains, rollCmd, NexterUtil.tiltRoll(q), rate[ROLL], dT);
+		// the next gyro sample takes the new setpoint into the integral too
+		double p = parameters.getGyroGains().p;
+		force[PITCH] = rateForce[PITCH] + p * (rateSetpoint[PITCH] - rateForceSetpoint[PITCH]);
+		force[ROLL] = rateForce[ROLL] + p * (rateSetpoint[ROLL] - rateForceSetpoint[ROLL]);
+		force[YAW] = 0;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for esc-control on the other end of a StreamMotorLink, in the
+ * same process. Decodes motor frames as avr/esc-control/motorframe.c does and
+ * answers each valid one with a telemetry frame, and each ascii line with
+ * "ch", so the control stack can be run and benchmarked off the phone and the
+ * board. avr/host/esc-emulator does the same with the C code on a pty.
+ * <p>
+ * With a baud rate set, each answer waits for the serial transfer time of the
+ * frame and the answer, and frames coming faster than that queue up as they
+ * would on the uart. The 200ms periodic telemetry and the watchdog are not
+ * emulated.
+ * @author dag
+ *
+ */
+public class EscEmulator {
+	private static final int POWER_LIMIT = 200; // as in esc-control
+	private final int motorCount;
+	private final byte[] frame; // after the sync byte: seq, powers, crc
+	private int frameLength = -1; // bytes of frame received, -1 when waiting for sync
+	private final byte[] telemetry;
+	private final int[] speed;
+	private final byte[] lineAnswer = {'c', 'h', '\r', '\n'};
+	private volatile int baudRate;
+	private long lineFreeAt;
+	private volatile long frameCount;
+	private volatile long errorCount;
+
+	/**
+	 * @param motorCount as esc-control is built with, 1-8
+	 */
+	public EscEmulator(int motorCount) {
+		if (motorCount < 1 || motorCount > MotorMixer.MAX_MOTORS) {
+			throw new IllegalArgumentException("motor count " + motorCount);
+		}
+		this.motorCount = motorCount;
+		frame = new byte[motorCount + 2];
+		telemetry = new byte[motorCount + 5];
+		speed = new int[motorCount];
+	}
+
+	/**
+	 * @param baudRate of the emulated uart, 0 for no transfer time
+	 */
+	public void setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * Runs the emulator on a daemon thread until in ends.
+	 * @return the thread
+	 */
+	public Thread start(final InputStream in, final OutputStream out) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					EscEmulator.this.run(in, out);
+				} catch (IOException e) {
+					// link closed
+				}
+			}
+		}, "EscEmulator");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Answers frames from in on out until in ends.
+	 */
+	public void run(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			for (int i = 0; i < n; i++) {
+				feed(buffer[i] & 0xff, out);
+			}
+		}
+	}
+
+	private void feed(int b, OutputStream out) throws IOException {
+		if (frameLength < 0) {
+			if (b == MotorFrameEncoder.SYNC) {
+				frameLength = 0;
+			} else if (b == '\r') {
+				send(lineAnswer, lineAnswer.length, 1, out);
+			}
+			return;
+		}
+		frame[frameLength++] = (byte) b;
+		if (frameLength < frame.length) {
+			return;
+		}
+		frameLength = -1;
+		int crc = 0;
+		for (int i = 0; i < frame.length - 1; i++) {
+			crc = MotorFrameEncoder.crc8(crc, frame[i]);
+		}
+		if (crc != (frame[frame.length - 1] & 0xff)) {
+			// resynchronize on a sync byte already received, as esc-control does
+			errorCount++;
+			for (int i = 0; i < frame.length; i++) {
+				if ((frame[i] & 0xff) == MotorFrameEncoder.SYNC) {
+					frameLength = frame.length - 1 - i;
+					System.arraycopy(frame, i + 1, frame, 0, frameLength);
+					break;
+				}
+			}
+			return;
+		}
+		frameCount++;
+		for (int i = 0; i < motorCount; i++) {
+			speed[i] = Math.min(frame[1 + i] & 0xff, POWER_LIMIT);
+		}
+		int length = encodeTelemetry(telemetry, frame[0] & 0xff, 0, 0, speed, motorCount);
+		send(telemetry, length, frame.length + 1, out);
+	}
+
+	/**
+	 * Writes an answer after the transfer time of the received and the
+	 * answer bytes.
+	 */
+	private void send(byte[] answer, int length, int received, OutputStream out) throws IOException {
+		int baud = baudRate;
+		if (baud > 0) {
+			long now = System.nanoTime();
+			long bits = 10L * (received + length);
+			lineFreeAt = Math.max(now, lineFreeAt) + bits * 1000000000L / baud;
+			while (lineFreeAt - System.nanoTime() > 0) {
+				LockSupport.parkNanos(lineFreeAt - System.nanoTime());
+			}
+		}
+		out.write(answer, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Encodes a telemetry frame as telemetryEncode in esc-control.
+	 * @return frame length
+	 */
+	public static int encodeTelemetry(byte[] buffer, int seq, int flags, int ticks, int[] speed, int motorCount) {
+		buffer[0] = (byte) TelemetryDecoder.SYNC;
+		buffer[1] = (byte) seq;
+		buffer[2] = (byte) ((flags & (TelemetryDecoder.WATCHDOG | TelemetryDecoder.BUTTONS)) | motorCount << 4);
+		buffer[3] = (byte) ticks;
+		for (int i = 0; i < motorCount; i++) {
+			buffer[4 + i] = (byte) speed[i];
+		}
+		int crc = 0;
+		for (int i = 1; i < 4 + motorCount; i++) {
+			crc = MotorFrameEncoder.crc8(crc, buffer[i]);
+		}
+		buffer[4 + motorCount] = (byte) crc;
+		return 5 + motorCount;
+	}
+
+	/**
+	 * @return number of valid motor frames received
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return number of motor frames dropped for crc error
+	 */
+	public long getErrorCount() {
+		return errorCount;
+	}
+}
@@ -24,11 +24,30 @@ package se.rende.gyro;
 public interface FlightAngle {
 	void calculate(double rollRate, double pitchRate, double yawRate,
 			double longitudinalAccel, double lateralAccel, double verticalAccel, double D_Dt);
+	/**
+	 * Propagates the attitude with gyro rates only. Together with correct()
+	 * this replaces calculate() when gyro and accelerometer are sampled at
+	 * different rates.
+	 * @param D_Dt time in seconds the rates apply for
+	 */
+	void predict(double rollRate, double pitchRate, double yawRate, double D_Dt);
+	/**
+	 * Corrects the attitude with an accelerometer sample taken at the time
+	 * the attitude has been predicted to.
+	 * @param D_Dt time in seconds since the previous correction
+	 */
+	void correct(double longitudinalAccel, double lateralAccel, double verticalAccel, double D_Dt);
 	double getAngle(int axis);
 	/**
-	 * Returns a ref to an angle array
+	 * Returns a ref to an angle array. The angles are converted from the
+	 * quaternion only when asked for after a change.
 	 * @return array with pitch, roll, yaw
 	 */
 	double[] getAngles();
+	/**
+	 * Copies the attitude quaternion to q, without any trigonometry.
+	 * @param q array of at least 4 to receive q0 (scalar part), q1, q2, q3
+	 */
+	void getQuaternion(double[] q);
 	void init();
 }
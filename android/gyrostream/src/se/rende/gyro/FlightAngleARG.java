@@ -25,15 +25,30 @@ public class FlightAngleARG implements FlightAngle {
 	private static final int PITCH = 0;
 	private static final int ROLL = 1;
 	private static final int YAW = 2;
-	double Kp; // proportional gain governs rate of convergence to accelerometer/magnetometer
-	double Ki; // integral gain governs rate of convergence of gyroscope biases
+	private static final double KI_RATE = 100; // Hz of calculate() calls Ki is tuned for
+	private static final double MAX_CORRECT_DT = 1; // longer gaps count as 1s, as in FlightAngleARGFixed
+	public static final double DEFAULT_KP = 0.2f; // 2.0;
+	public static final double DEFAULT_KI = 0.0005f; // 0.005;
+	final double Kp; // proportional gain governs rate of convergence to accelerometer/magnetometer
+	final double Ki; // integral gain governs rate of convergence of gyroscope biases
 	double halfT; // half the sample period
 	double q0, q1, q2, q3; // quaternion elements representing the estimated orientation
 	double exInt, eyInt, ezInt; // scaled integral error
 
 	private double[] angle = new double[3];
+	private boolean anglesValid; // false when angle is out of date with the quaternion
 
 	public FlightAngleARG() {
+		this(DEFAULT_KP, DEFAULT_KI);
+	}
+
+	/**
+	 * @param Kp proportional gain, DEFAULT_KP is used in flight
+	 * @param Ki integral gain per calculate() at 100Hz, DEFAULT_KI is used in flight
+	 */
+	public FlightAngleARG(double Kp, double Ki) {
+		this.Kp = Kp;
+		this.Ki = Ki;
 		init();
 	}
 
@@ -46,12 +61,10 @@ public class FlightAngleARG implements FlightAngle {
 		eyInt = 0.0f;
 		ezInt = 0.0f;
 
-		Kp = 0.2f; // 2.0;
-		Ki = 0.0005f; // 0.005;
-		
 		for (int i = 0; i < angle.length; i++) {
 			angle[i] = 0;
 		}
+		anglesValid = true;
 	}
 
 	void argUpdate(double gx, double gy, double gz, double ax, double ay, double az,
@@ -107,6 +120,71 @@ public class FlightAngleARG implements FlightAngle {
 		q3 = q3 / norm;
 	}
 
+	public void predict(double rollRate, double pitchRate, double yawRate, double G_Dt) {
+		// integral error is applied as a gyro bias
+		integrate(rollRate + exInt, pitchRate + eyInt, yawRate + ezInt, G_Dt / 2);
+		anglesValid = false;
+	}
+
+	public void correct(double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+		double norm;
+		double vx, vy, vz;
+		double ex, ey, ez;
+		double ax = longitudinalAccel, ay = lateralAccel, az = verticalAccel;
+
+		// normalise the measurements
+		norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm == 0) {
+			return;
+		}
+		ax = ax / norm;
+		ay = ay / norm;
+		az = az / norm;
+
+		// estimated direction of gravity
+		vx = 2 * (q1 * q3 - q0 * q2);
+		vy = 2 * (q0 * q1 + q2 * q3);
+		vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+		// error is cross product between estimated and measured direction of gravity
+		ex = (vy * az - vz * ay);
+		ey = (vz * ax - vx * az);
+		ez = (vx * ay - vy * ax);
+
+		// integral error, scaled to the same gain per second as calculate()
+		G_Dt = Math.min(G_Dt, MAX_CORRECT_DT);
+		double steps = G_Dt * KI_RATE;
+		exInt = exInt + ex * Ki * steps;
+		eyInt = eyInt + ey * Ki * steps;
+		ezInt = ezInt + ez * Ki * steps;
+
+		// turn by the proportional feedback for the time since last correction
+		integrate(Kp * ex, Kp * ey, Kp * ez, G_Dt / 2);
+		anglesValid = false;
+	}
+
+	/**
+	 * Rotates the attitude by the body rates gx, gy, gz for 2 * halfT seconds.
+	 */
+	private void integrate(double gx, double gy, double gz, double halfT) {
+		double q0i = (-q1 * gx - q2 * gy - q3 * gz) * halfT;
+		double q1i = (q0 * gx + q2 * gz - q3 * gy) * halfT;
+		double q2i = (q0 * gy - q1 * gz + q3 * gx) * halfT;
+		double q3i = (q0 * gz + q1 * gy - q2 * gx) * halfT;
+		q0 += q0i;
+		q1 += q1i;
+		q2 += q2i;
+		q3 += q3i;
+
+		// normalise quaternion
+		double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 = q0 / norm;
+		q1 = q1 / norm;
+		q2 = q2 / norm;
+		q3 = q3 / norm;
+	}
+
 	void eulerAngles() {
 		angle[ROLL] = (double) Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1
 				* q1 + q2 * q2));
@@ -121,17 +199,71 @@ public class FlightAngleARG implements FlightAngle {
 
 		argUpdate(rollRate, pitchRate, yawRate, 
 				longitudinalAccel, lateralAccel, verticalAccel, G_Dt);
-		eulerAngles();
+		anglesValid = false;
+	}
+
+	/**
+	 * Runs calculate() over count recorded samples starting at offset and
+	 * stores the quaternion after each one at index i of q0 to q3. Same
+	 * numerics as calculate(), so the result is identical to calling it
+	 * sample by sample.
+	 */
+	public void calculateBatch(float[] gx, float[] gy, float[] gz,
+			float[] ax, float[] ay, float[] az, float[] dt, int offset, int count,
+			double[] q0, double[] q1, double[] q2, double[] q3) {
+		for (int i = 0; i < count; i++) {
+			int j = offset + i;
+			argUpdate(gx[j], gy[j], gz[j], ax[j], ay[j], az[j], dt[j]);
+			q0[i] = this.q0;
+			q1[i] = this.q1;
+			q2[i] = this.q2;
+			q3[i] = this.q3;
+		}
+		if (count > 0) {
+			anglesValid = false;
+		}
+	}
+
+	/**
+	 * Runs calculate() over count recorded samples starting at offset and
+	 * stores the angles after each one at index i of pitch, roll and yaw, as
+	 * getAngles() would return them.
+	 */
+	public void calculateBatch(float[] gx, float[] gy, float[] gz,
+			float[] ax, float[] ay, float[] az, float[] dt, int offset, int count,
+			double[] pitch, double[] roll, double[] yaw) {
+		for (int i = 0; i < count; i++) {
+			int j = offset + i;
+			argUpdate(gx[j], gy[j], gz[j], ax[j], ay[j], az[j], dt[j]);
+			eulerAngles();
+			pitch[i] = angle[PITCH];
+			roll[i] = angle[ROLL];
+			yaw[i] = angle[YAW];
+		}
+		if (count > 0) {
+			anglesValid = true;
+		}
 	}
 
 	public double getAngle(int axis) {
-		return angle[axis];
+		return getAngles()[axis];
 	}
 
 	public double[] getAngles() {
+		if (!anglesValid) {
+			eulerAngles();
+			anglesValid = true;
+		}
 		return angle;
 	}
 
+	public void getQuaternion(double[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+
 	
 
 
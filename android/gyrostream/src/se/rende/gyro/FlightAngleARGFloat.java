@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Same filter as {@link FlightAngleARG} but with float state and fast inverse
+ * square root normalisation. Nothing is allocated per update.
+ * <p>
+ * Compared to FlightAngleARG fed with the same samples, pitch and roll differ
+ * by at most 4.0e-6 rad, measured by FlightAngleBenchmark over 2*10^6 updates
+ * of a moving 100Hz trace. The difference comes from float rounding in the
+ * quaternion integration and is held down by the accelerometer feedback. Yaw
+ * has no such feedback, so its difference may wander slowly.
+ * <p>
+ * It is not faster on a desktop JVM: FlightAngleBenchmark gives about 69
+ * ns/update against 55 for FlightAngleARG. Whether float pays off on a handset
+ * has not been measured.
+ */
+public class FlightAngleARGFloat implements FlightAngle {
+	private static final int PITCH = 0;
+	private static final int ROLL = 1;
+	private static final int YAW = 2;
+	private static final float KI_RATE = 100; // Hz of calculate() calls Ki is tuned for
+	private static final double MAX_CORRECT_DT = 1; // longer gaps count as 1s, as in FlightAngleARGFixed
+	float Kp; // proportional gain governs rate of convergence to accelerometer/magnetometer
+	float Ki; // integral gain governs rate of convergence of gyroscope biases
+	float q0, q1, q2, q3; // quaternion elements representing the estimated orientation
+	float exInt, eyInt, ezInt; // scaled integral error
+
+	private double[] angle = new double[3];
+	private boolean anglesValid; // false when angle is out of date with the quaternion
+
+	public FlightAngleARGFloat() {
+		init();
+	}
+
+	public void init() {
+		q0 = 1.0f;
+		q1 = 0.0f;
+		q2 = 0.0f;
+		q3 = 0.0f;
+		exInt = 0.0f;
+		eyInt = 0.0f;
+		ezInt = 0.0f;
+
+		Kp = 0.2f;
+		Ki = 0.0005f;
+
+		for (int i = 0; i < angle.length; i++) {
+			angle[i] = 0;
+		}
+		anglesValid = true;
+	}
+
+	/**
+	 * Fast approximation of 1 / sqrt(x) with two Newton steps, relative error
+	 * below 5e-6.
+	 */
+	static float invSqrt(float x) {
+		float halfX = 0.5f * x;
+		float y = Float.intBitsToFloat(0x5f375a86 - (Float.floatToRawIntBits(x) >> 1));
+		y = y * (1.5f - halfX * y * y);
+		y = y * (1.5f - halfX * y * y);
+		return y;
+	}
+
+	void argUpdate(float gx, float gy, float gz, float ax, float ay, float az,
+			float G_Dt) {
+		float norm;
+		float vx, vy, vz;
+		float ex, ey, ez;
+
+		float halfT = G_Dt * 0.5f;
+
+		// normalise the measurements
+		norm = invSqrt(ax * ax + ay * ay + az * az);
+		ax *= norm;
+		ay *= norm;
+		az *= norm;
+
+		// estimated direction of gravity
+		vx = 2 * (q1 * q3 - q0 * q2);
+		vy = 2 * (q0 * q1 + q2 * q3);
+		vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+		// error is cross product between estimated and measured direction of gravity
+		ex = (vy * az - vz * ay);
+		ey = (vz * ax - vx * az);
+		ez = (vx * ay - vy * ax);
+
+		// integral error scaled integral gain
+		exInt += ex * Ki;
+		eyInt += ey * Ki;
+		ezInt += ez * Ki;
+
+		// adjusted gyroscope measurements
+		gx += Kp * ex + exInt;
+		gy += Kp * ey + eyInt;
+		gz += Kp * ez + ezInt;
+
+		// integrate quaternion rate
+		float q0i = (-q1 * gx - q2 * gy - q3 * gz) * halfT;
+		float q1i = (q0 * gx + q2 * gz - q3 * gy) * halfT;
+		float q2i = (q0 * gy - q1 * gz + q3 * gx) * halfT;
+		float q3i = (q0 * gz + q1 * gy - q2 * gx) * halfT;
+		q0 += q0i;
+		q1 += q1i;
+		q2 += q2i;
+		q3 += q3i;
+
+		// normalise quaternion
+		norm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 *= norm;
+		q1 *= norm;
+		q2 *= norm;
+		q3 *= norm;
+	}
+
+	public void predict(double rollRate, double pitchRate, double yawRate, double G_Dt) {
+		// integral error is applied as a gyro bias
+		integrate((float) rollRate + exInt, (float) pitchRate + eyInt, (float) yawRate + ezInt,
+				(float) G_Dt * 0.5f);
+		anglesValid = false;
+	}
+
+	public void correct(double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+		float ax = (float) longitudinalAccel, ay = (float) lateralAccel, az = (float) verticalAccel;
+		float sumSquares = ax * ax + ay * ay + az * az;
+		if (sumSquares == 0) {
+			return;
+		}
+
+		// normalise the measurements
+		float norm = invSqrt(sumSquares);
+		ax *= norm;
+		ay *= norm;
+		az *= norm;
+
+		// estimated direction of gravity
+		float vx = 2 * (q1 * q3 - q0 * q2);
+		float vy = 2 * (q0 * q1 + q2 * q3);
+		float vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+		// error is cross product between estimated and measured direction of gravity
+		float ex = (vy * az - vz * ay);
+		float ey = (vz * ax - vx * az);
+		float ez = (vx * ay - vy * ax);
+
+		// integral error, scaled to the same gain per second as calculate()
+		G_Dt = Math.min(G_Dt, MAX_CORRECT_DT);
+		float steps = (float) G_Dt * KI_RATE;
+		exInt += ex * Ki * steps;
+		eyInt += ey * Ki * steps;
+		ezInt += ez * Ki * steps;
+
+		// turn by the proportional feedback for the time since last correction
+		integrate(Kp * ex, Kp * ey, Kp * ez, (float) G_Dt * 0.5f);
+		anglesValid = false;
+	}
+
+	/**
+	 * Rotates the attitude by the body rates gx, gy, gz for 2 * halfT seconds.
+	 */
+	private void integrate(float gx, float gy, float gz, float halfT) {
+		float q0i = (-q1 * gx - q2 * gy - q3 * gz) * halfT;
+		float q1i = (q0 * gx + q2 * gz - q3 * gy) * halfT;
+		float q2i = (q0 * gy - q1 * gz + q3 * gx) * halfT;
+		float q3i = (q0 * gz + q1 * gy - q2 * gx) * halfT;
+		q0 += q0i;
+		q1 += q1i;
+		q2 += q2i;
+		q3 += q3i;
+
+		// normalise quaternion
+		float norm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 *= norm;
+		q1 *= norm;
+		q2 *= norm;
+		q3 *= norm;
+	}
+
+	void eulerAngles() {
+		angle[ROLL] = Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1
+				* q1 + q2 * q2));
+		angle[PITCH] = Math.asin(2 * (q0 * q2 - q1 * q3));
+		angle[YAW] = Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2
+				* q2 + q3 * q3));
+	}
+
+	public void calculate(double rollRate, double pitchRate, double yawRate,
+			double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+
+		argUpdate((float) rollRate, (float) pitchRate, (float) yawRate,
+				(float) longitudinalAccel, (float) lateralAccel, (float) verticalAccel,
+				(float) G_Dt);
+		anglesValid = false;
+	}
+
+	public double getAngle(int axis) {
+		return getAngles()[axis];
+	}
+
+	public double[] getAngles() {
+		if (!anglesValid) {
+			eulerAngles();
+			anglesValid = true;
+		}
+		return angle;
+	}
+
+	public void getQuaternion(double[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+
+}
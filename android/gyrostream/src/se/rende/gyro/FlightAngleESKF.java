@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Error state Kalman filter estimating attitude and gyro bias together.
+ * <p>
+ * The nominal state is the attitude quaternion and the gyro bias. The 6
+ * element error state is a small body frame rotation and a bias correction,
+ * with its 6x6 covariance kept in a row major double[36]. The gyro predicts,
+ * the accelerometer corrects, and the correction is folded back into the
+ * nominal state after each update. All matrices are preallocated, so an
+ * update does no heap allocation.
+ * <p>
+ * Accelerations are taken with the same sign as FlightAngleARG does, -1g on
+ * the vertical axis when level. The first update after init() sets pitch and
+ * roll straight from the accelerometer.
+ */
+public class FlightAngleESKF implements FlightAngle {
+	private static final int PITCH = 0;
+	private static final int ROLL = 1;
+	private static final int YAW = 2;
+	private static final int N = 6; // error state size
+	double gyroNoise = 0.003; // gyro noise density, rad/s/sqrt(Hz)
+	double biasNoise = 0.0001; // gyro bias random walk, rad/s/sqrt(s)
+	double accelNoise = 0.05; // noise of the normalised accelerometer, incl. vibration
+	double initialAngleSigma = 0.1; // rad, attitude uncertainty after seeding
+	double initialBiasSigma = 0.05; // rad/s, gyro bias uncertainty after init
+	double q0, q1, q2, q3; // quaternion elements representing the estimated orientation
+	double bx, by, bz; // estimated gyro bias
+	private boolean seeded; // true when the attitude has been set from the accelerometer
+
+	private final double[] p = new double[N * N]; // error state covariance
+	private final double[] phi = new double[9]; // attitude error transition
+	private final double[] x = new double[9];
+	private final double[] y = new double[9];
+	private final double[] h = new double[9]; // measurement jacobian, angle part
+	private final double[] pht = new double[N * 3]; // P * H'
+	private final double[] s = new double[9]; // innovation covariance
+	private final double[] sInv = new double[9];
+	private final double[] k = new double[N * 3]; // kalman gain
+	private final double[] dx = new double[N]; // error state
+
+	private double[] angle = new double[3];
+	private boolean anglesValid; // false when angle is out of date with the quaternion
+
+	public FlightAngleESKF() {
+		init();
+	}
+
+	public void init() {
+		q0 = 1;
+		q1 = 0;
+		q2 = 0;
+		q3 = 0;
+		bx = 0;
+		by = 0;
+		bz = 0;
+		seeded = false;
+
+		for (int i = 0; i < p.length; i++) {
+			p[i] = 0;
+		}
+		for (int i = 0; i < 3; i++) {
+			p[i * N + i] = initialAngleSigma * initialAngleSigma;
+			p[(i + 3) * N + i + 3] = initialBiasSigma * initialBiasSigma;
+		}
+
+		for (int i = 0; i < angle.length; i++) {
+			angle[i] = 0;
+		}
+		anglesValid = true;
+	}
+
+	/**
+	 * Sets the attitude to the shortest rotation that makes the estimated
+	 * direction of gravity equal the measured one. Yaw is left at 0.
+	 * @param ax direction of gravity, that is the negated acceleration
+	 */
+	void seed(double ax, double ay, double az) {
+		double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm == 0) {
+			return;
+		}
+		ax /= norm;
+		ay /= norm;
+		az /= norm;
+		if (az < -0.99) {
+			// upside down, too close to the singularity to trust
+			return;
+		}
+		q0 = 1 + az;
+		q1 = ay;
+		q2 = -ax;
+		q3 = 0;
+		norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		seeded = true;
+	}
+
+	/**
+	 * Propagates the nominal state with the bias corrected gyro and the
+	 * covariance with P = F P F' + Q.
+	 */
+	public void predict(double gx, double gy, double gz, double G_Dt) {
+		gx -= bx;
+		gy -= by;
+		gz -= bz;
+
+		// integrate quaternion rate
+		double halfT = G_Dt / 2;
+		double q0i = (-q1 * gx - q2 * gy - q3 * gz) * halfT;
+		double q1i = (q0 * gx + q2 * gz - q3 * gy) * halfT;
+		double q2i = (q0 * gy - q1 * gz + q3 * gx) * halfT;
+		double q3i = (q0 * gz + q1 * gy - q2 * gx) * halfT;
+		q0 += q0i;
+		q1 += q1i;
+		q2 += q2i;
+		q3 += q3i;
+		normalise();
+
+		// F = [phi, -I dt; 0, I] with phi = I - [w x] dt. With P = [A, B; B', C]
+		// F P F' = [X phi' - Y dt, Y; Y', C] where X = phi A - B' dt and
+		// Y = phi B - C dt, which is far cheaper than full 6x6 products.
+		phi[0] = 1;
+		phi[1] = gz * G_Dt;
+		phi[2] = -gy * G_Dt;
+		phi[3] = -gz * G_Dt;
+		phi[4] = 1;
+		phi[5] = gx * G_Dt;
+		phi[6] = gy * G_Dt;
+		phi[7] = -gx * G_Dt;
+		phi[8] = 1;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				x[i * 3 + j] = phi[i * 3] * p[j] + phi[i * 3 + 1] * p[N + j]
+						+ phi[i * 3 + 2] * p[2 * N + j] - G_Dt * p[(3 + i) * N + j];
+				y[i * 3 + j] = phi[i * 3] * p[3 + j] + phi[i * 3 + 1] * p[N + 3 + j]
+						+ phi[i * 3 + 2] * p[2 * N + 3 + j] - G_Dt * p[(3 + i) * N + 3 + j];
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				p[i * N + j] = x[i * 3] * phi[j * 3] + x[i * 3 + 1] * phi[j * 3 + 1]
+						+ x[i * 3 + 2] * phi[j * 3 + 2] - G_Dt * y[i * 3 + j];
+				p[i * N + 3 + j] = y[i * 3 + j];
+				p[(3 + j) * N + i] = y[i * 3 + j];
+			}
+		}
+
+		double angleVariance = gyroNoise * gyroNoise * G_Dt;
+		double biasVariance = biasNoise * biasNoise * G_Dt;
+		for (int i = 0; i < 3; i++) {
+			p[i * N + i] += angleVariance;
+			p[(i + 3) * N + i + 3] += biasVariance;
+		}
+		anglesValid = false;
+	}
+
+	/**
+	 * Corrects attitude and bias with the measured direction of gravity.
+	 * @param ax direction of gravity, that is the negated acceleration
+	 */
+	void correctGravity(double ax, double ay, double az) {
+		double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm == 0) {
+			return;
+		}
+		ax /= norm;
+		ay /= norm;
+		az /= norm;
+
+		// estimated direction of gravity
+		double vx = 2 * (q1 * q3 - q0 * q2);
+		double vy = 2 * (q0 * q1 + q2 * q3);
+		double vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+		// H = [[v x], 0], as a small body rotation d turns v into v + v x d
+		h[0] = 0;
+		h[1] = -vz;
+		h[2] = vy;
+		h[3] = vz;
+		h[4] = 0;
+		h[5] = -vx;
+		h[6] = -vy;
+		h[7] = vx;
+		h[8] = 0;
+
+		// P H'
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < 3; j++) {
+				pht[i * 3 + j] = p[i * N] * h[j * 3] + p[i * N + 1] * h[j * 3 + 1]
+						+ p[i * N + 2] * h[j * 3 + 2];
+			}
+		}
+		// S = H P H' + R
+		double r = accelNoise * accelNoise;
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				s[i * 3 + j] = h[i * 3] * pht[j] + h[i * 3 + 1] * pht[3 + j]
+						+ h[i * 3 + 2] * pht[6 + j];
+			}
+			s[i * 3 + i] += r;
+		}
+		if (!invert3(s, sInv)) {
+			return;
+		}
+		// K = P H' S^-1
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < 3; j++) {
+				k[i * 3 + j] = pht[i * 3] * sInv[j] + pht[i * 3 + 1] * sInv[3 + j]
+						+ pht[i * 3 + 2] * sInv[6 + j];
+			}
+		}
+
+		// dx = K (z - v)
+		double ex = ax - vx;
+		double ey = ay - vy;
+		double ez = az - vz;
+		for (int i = 0; i < N; i++) {
+			dx[i] = k[i * 3] * ex + k[i * 3 + 1] * ey + k[i * 3 + 2] * ez;
+		}
+
+		// P = P - K H P, where H P = (P H')' as P is symmetric
+		for (int i = 0; i < N; i++) {
+			for (int j = 0; j < N; j++) {
+				p[i * N + j] -= k[i * 3] * pht[j * 3] + k[i * 3 + 1] * pht[j * 3 + 1]
+						+ k[i * 3 + 2] * pht[j * 3 + 2];
+			}
+		}
+		for (int i = 0; i < N; i++) {
+			for (int j = i + 1; j < N; j++) {
+				double mean = (p[i * N + j] + p[j * N + i]) / 2;
+				p[i * N + j] = mean;
+				p[j * N + i] = mean;
+			}
+		}
+
+		// fold the error state into the nominal state
+		double a1 = dx[0] / 2;
+		double a2 = dx[1] / 2;
+		double a3 = dx[2] / 2;
+		double n0 = q0 - q1 * a1 - q2 * a2 - q3 * a3;
+		double n1 = q0 * a1 + q1 + q2 * a3 - q3 * a2;
+		double n2 = q0 * a2 - q1 * a3 + q2 + q3 * a1;
+		double n3 = q0 * a3 + q1 * a2 - q2 * a1 + q3;
+		q0 = n0;
+		q1 = n1;
+		q2 = n2;
+		q3 = n3;
+		normalise();
+		bx += dx[3];
+		by += dx[4];
+		bz += dx[5];
+	}
+
+	private void normalise() {
+		double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		q3 /= norm;
+	}
+
+	/**
+	 * Inverts the row major 3x3 matrix m into inv.
+	 * @return false if m is singular
+	 */
+	static boolean invert3(double[] m, double[] inv) {
+		double c00 = m[4] * m[8] - m[5] * m[7];
+		double c01 = m[5] * m[6] - m[3] * m[8];
+		double c02 = m[3] * m[7] - m[4] * m[6];
+		double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+		if (det == 0) {
+			return false;
+		}
+		double invDet = 1 / det;
+		inv[0] = c00 * invDet;
+		inv[1] = (m[2] * m[7] - m[1] * m[8]) * invDet;
+		inv[2] = (m[1] * m[5] - m[2] * m[4]) * invDet;
+		inv[3] = c01 * invDet;
+		inv[4] = (m[0] * m[8] - m[2] * m[6]) * invDet;
+		inv[5] = (m[2] * m[3] - m[0] * m[5]) * invDet;
+		inv[6] = c02 * invDet;
+		inv[7] = (m[1] * m[6] - m[0] * m[7]) * invDet;
+		inv[8] = (m[0] * m[4] - m[1] * m[3]) * invDet;
+		return true;
+	}
+
+	void eulerAngles() {
+		angle[ROLL] = Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1
+				* q1 + q2 * q2));
+		angle[PITCH] = Math.asin(2 * (q0 * q2 - q1 * q3));
+		angle[YAW] = Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2
+				* q2 + q3 * q3));
+	}
+
+	public void calculate(double rollRate, double pitchRate, double yawRate,
+			double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+
+		if (!seeded) {
+			seed(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		}
+		predict(rollRate, pitchRate, yawRate, G_Dt);
+		correctGravity(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		anglesValid = false;
+	}
+
+	/**
+	 * Corrects with the accelerometer. The time since last correction is not
+	 * needed, as the covariance already holds the uncertainty added by predict.
+	 */
+	public void correct(double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+		if (!seeded) {
+			seed(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		}
+		correctGravity(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		anglesValid = false;
+	}
+
+	public double getAngle(int axis) {
+		return getAngles()[axis];
+	}
+
+	public double[] getAngles() {
+		if (!anglesValid) {
+			eulerAngles();
+			anglesValid = true;
+		}
+		return angle;
+	}
+
+	public void getQuaternion(double[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+
+	/**
+	 * Copies the estimated gyro bias, in the axes and units of the rates
+	 * given to calculate, to b. This bias is already removed from the rates
+	 * before integration.
+	 * @param b array of at least 3 to receive roll, pitch and yaw rate bias
+	 */
+	public void getGyroBias(double[] b) {
+		b[0] = bx;
+		b[1] = by;
+		b[2] = bz;
+	}
+
+}
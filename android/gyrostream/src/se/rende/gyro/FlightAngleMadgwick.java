@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Madgwick gradient descent IMU filter, after
+ * http://www.x-io.co.uk/open-source-imu-and-ahrs-algorithms/.
+ * <p>
+ * Accelerations are taken with the same sign as FlightAngleARG does, that is
+ * -1g on the vertical axis when level, which is the negated gravity direction
+ * used in the paper.
+ * <p>
+ * The first update after init() sets the attitude straight from the
+ * accelerometer, so pitch and roll are right from the start instead of
+ * converging from level. Nothing is allocated per update.
+ */
+public class FlightAngleMadgwick implements FlightAngle {
+	private static final int PITCH = 0;
+	private static final int ROLL = 1;
+	private static final int YAW = 2;
+	double beta = 0.1; // gradient descent step, in rad/s of correction
+	double q0, q1, q2, q3; // quaternion elements representing the estimated orientation
+	private boolean seeded; // true when the attitude has been set from the accelerometer
+
+	private double[] angle = new double[3];
+	private boolean anglesValid; // false when angle is out of date with the quaternion
+
+	public FlightAngleMadgwick() {
+		init();
+	}
+
+	public void init() {
+		q0 = 1;
+		q1 = 0;
+		q2 = 0;
+		q3 = 0;
+		seeded = false;
+
+		for (int i = 0; i < angle.length; i++) {
+			angle[i] = 0;
+		}
+		anglesValid = true;
+	}
+
+	/**
+	 * Sets the attitude to the shortest rotation that makes the estimated
+	 * direction of gravity equal the measured one. Yaw is left at 0.
+	 * @param ax direction of gravity, that is the negated acceleration
+	 */
+	void seed(double ax, double ay, double az) {
+		double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm == 0) {
+			return;
+		}
+		ax /= norm;
+		ay /= norm;
+		az /= norm;
+		if (az < -0.99) {
+			// upside down, too close to the singularity to trust
+			return;
+		}
+		q0 = 1 + az;
+		q1 = ay;
+		q2 = -ax;
+		q3 = 0;
+		norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		seeded = true;
+	}
+
+	/**
+	 * One filter step. A zero acceleration skips the gradient step.
+	 * @param ax direction of gravity, that is the negated acceleration
+	 */
+	void madgwickUpdate(double gx, double gy, double gz, double ax, double ay, double az,
+			double G_Dt) {
+		double norm;
+
+		// rate of change of quaternion from gyroscope
+		double qDot0 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+		double qDot1 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+		double qDot2 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+		double qDot3 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+		norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm > 0) {
+			// normalise the measurements
+			ax /= norm;
+			ay /= norm;
+			az /= norm;
+
+			double _2q0 = 2 * q0;
+			double _2q1 = 2 * q1;
+			double _2q2 = 2 * q2;
+			double _2q3 = 2 * q3;
+			double _4q0 = 4 * q0;
+			double _4q1 = 4 * q1;
+			double _4q2 = 4 * q2;
+			double _8q1 = 8 * q1;
+			double _8q2 = 8 * q2;
+			double q0q0 = q0 * q0;
+			double q1q1 = q1 * q1;
+			double q2q2 = q2 * q2;
+			double q3q3 = q3 * q3;
+
+			// gradient of the error between estimated and measured direction of gravity
+			double s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+			double s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+			double s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+			double s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+			norm = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+			if (norm > 0) {
+				// step down the gradient
+				double step = beta / norm;
+				qDot0 -= step * s0;
+				qDot1 -= step * s1;
+				qDot2 -= step * s2;
+				qDot3 -= step * s3;
+			}
+		}
+
+		// integrate quaternion rate
+		q0 += qDot0 * G_Dt;
+		q1 += qDot1 * G_Dt;
+		q2 += qDot2 * G_Dt;
+		q3 += qDot3 * G_Dt;
+
+		// normalise quaternion
+		norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		q3 /= norm;
+	}
+
+	public void predict(double rollRate, double pitchRate, double yawRate, double G_Dt) {
+		madgwickUpdate(rollRate, pitchRate, yawRate, 0, 0, 0, G_Dt);
+		anglesValid = false;
+	}
+
+	public void correct(double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+		if (!seeded) {
+			seed(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		}
+		// the gradient step alone, for the time since last correction
+		madgwickUpdate(0, 0, 0, -longitudinalAccel, -lateralAccel, -verticalAccel, G_Dt);
+		anglesValid = false;
+	}
+
+	void eulerAngles() {
+		angle[ROLL] = Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1
+				* q1 + q2 * q2));
+		angle[PITCH] = Math.asin(2 * (q0 * q2 - q1 * q3));
+		angle[YAW] = Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2
+				* q2 + q3 * q3));
+	}
+
+	public void calculate(double rollRate, double pitchRate, double yawRate,
+			double longitudinalAccel, double lateralAccel, double verticalAccel,
+			double G_Dt) {
+
+		if (!seeded) {
+			seed(-longitudinalAccel, -lateralAccel, -verticalAccel);
+		}
+		madgwickUpdate(rollRate, pitchRate, yawRate,
+				-longitudinalAccel, -lateralAccel, -verticalAccel, G_Dt);
+		anglesValid = false;
+	}
+
+	public double getAngle(int axis) {
+		return getAngles()[axis];
+	}
+
+	public double[] getAngles() {
+		if (!anglesValid) {
+			eulerAngles();
+			anglesValid = true;
+		}
+		return angle;
+	}
+
+	public void getQuaternion(double[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Calculates pitch, roll and yaw forces for the motor mixer from the attitude
+ * and the stick commands.
+ * <p>
+ * Both methods are called from the control thread: rate() for every gyro
+ * sample in flight, control() at the control rate.
+ * @author dag
+ *
+ */
+public interface FlightController {
+	int PITCH = 0;
+	int ROLL = 1;
+	int YAW = 2;
+
+	/**
+	 * Forgets all controller state, as before take off.
+	 */
+	void init();
+
+	/**
+	 * Takes a gyro sample, in the axes given to FlightAngle.predict().
+	 * @param parameters gains to use for this sample
+	 * @param dT seconds since previous sample
+	 */
+	void rate(FlightParameters parameters, double rollRate, double pitchRate, double yawRate, double dT);
+
+	/**
+	 * @param parameters gains to use for this run
+	 * @param q attitude quaternion
+	 * @param pitchCmd commanded pitch, forward positive
+	 * @param rollCmd commanded roll, right positive
+	 * @param yawCmd commanded turn, clockwise positive
+	 * @param dT control period in seconds
+	 * @param force set to the forces at PITCH, ROLL and YAW
+	 */
+	void control(FlightParameters parameters, double[] q, double pitchCmd, double rollCmd, double yawCmd, double dT, double[] force);
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The flight parameters that can be set by command, with name, type and
+ * default. The ordinal is the id of the parameter in FlightParameters.
+ * <p>
+ * A parameter is either a number within limits or a choice among names. Both
+ * kinds are held as a double, a choice as the index of the name.
+ * @author dag
+ *
+ */
+public enum FlightParameter {
+	GYRO_P("gp", "0.8", -100000, 100000),
+	GYRO_I("gi", "0", -100000, 100000),
+	GYRO_D("gd", "150", -100000, 100000),
+	GYRO_WINDUP("gw", "1000", 0, 100000),
+	STICK_P("sp", "0", -100000, 100000),
+	STICK_I("si", "0", -100000, 100000),
+	STICK_D("sd", "0", -100000, 100000),
+	STICK_WINDUP("sw", "0.375", 0, 100000),
+	ESTIMATOR("est", "arg", "arg", "argf", "argfixed", "madgwick", "eskf"),
+	MOTOR_FRAME("mf", "binary", "binary", "ascii"),
+	CONTROL_RATE("cr", "200", 1, 1000),
+	CONTROLLER("ctl", "angle", "angle", "cascaded"),
+	FRAME("frame", "quadx", "quadx", "quadplus", "hexa", "octo"),
+	MOTOR_DEADBAND("md", "1", 1, 255),
+	HEARTBEAT("hb", "250", 20, 1500); // ms, well below the 2s esc-control watchdog
+
+	private static final Map<String, FlightParameter> byName = new HashMap<String, FlightParameter>();
+	private static final FlightParameter[] byId = values();
+	private final String name;
+	private final String defaultValue;
+	private final double min;
+	private final double max;
+	private final String[] choices; // null for a number
+
+	static {
+		for (FlightParameter parameter : byId) {
+			byName.put(parameter.name, parameter);
+		}
+	}
+
+	private FlightParameter(String name, String defaultValue, double min, double max) {
+		this.name = name;
+		this.defaultValue = defaultValue;
+		this.min = min;
+		this.max = max;
+		this.choices = null;
+	}
+
+	private FlightParameter(String name, String defaultValue, String... choices) {
+		this.name = name;
+		this.defaultValue = defaultValue;
+		this.min = 0;
+		this.max = choices.length - 1;
+		this.choices = choices;
+	}
+
+	/**
+	 * @return the parameter with the command name, or null
+	 */
+	public static FlightParameter forName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @return the parameter with ordinal id, or null
+	 */
+	public static FlightParameter forId(int id) {
+		return id >= 0 && id < byId.length ? byId[id] : null;
+	}
+
+	/**
+	 * @return name used in commands and prefs
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getDefault() {
+		return defaultValue;
+	}
+
+	public boolean isChoice() {
+		return choices != null;
+	}
+
+	/**
+	 * @return value of s, the index for a choice
+	 * @throws IllegalArgumentException if s is not a number within limits or not one of the choices
+	 */
+	public double parse(String s) {
+		if (choices != null) {
+			for (int i = 0; i < choices.length; i++) {
+				if (choices[i].equals(s)) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("unknown " + name + " " + s);
+		}
+		double value = Double.parseDouble(s);
+		if (!(value >= min && value <= max)) {
+			throw new IllegalArgumentException(name + " " + s + " outside " + min + " - " + max);
+		}
+		return value;
+	}
+
+	/**
+	 * @return value as parse() takes it
+	 */
+	public String format(double value) {
+		return choices != null ? choices[(int) value] : Double.toString(value);
+	}
+}
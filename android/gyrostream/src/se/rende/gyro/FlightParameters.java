@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Immutable set of flight parameter values. A change makes a new set, which
+ * FlightService publishes through an AtomicReference, so the control thread
+ * takes one consistent set per control run without locking and never sees
+ * half of a change.
+ * @author dag
+ *
+ */
+public final class FlightParameters {
+	private static final FlightParameter[] PARAMETERS = FlightParameter.values();
+	public static final FlightParameters DEFAULTS = defaults();
+	private final double[] values;
+	private final PIDGains gyroGains;
+	private final PIDGains stickGains;
+	private final long controlPeriod;
+	private final MotorMixer motorMixer;
+	private final int motorDeadband;
+	private final long heartbeatPeriod;
+
+	private FlightParameters(double[] values) {
+		this.values = values;
+		gyroGains = new PIDGains(get(FlightParameter.GYRO_P), get(FlightParameter.GYRO_I),
+				get(FlightParameter.GYRO_D), get(FlightParameter.GYRO_WINDUP));
+		stickGains = new PIDGains(get(FlightParameter.STICK_P), get(FlightParameter.STICK_I),
+				get(FlightParameter.STICK_D), get(FlightParameter.STICK_WINDUP));
+		controlPeriod = Math.round(1000000000 / get(FlightParameter.CONTROL_RATE));
+		motorMixer = MotorMixer.forName(getAsString(FlightParameter.FRAME));
+		motorDeadband = (int) get(FlightParameter.MOTOR_DEADBAND);
+		heartbeatPeriod = Math.round(get(FlightParameter.HEARTBEAT) * 1000000);
+	}
+
+	private static FlightParameters defaults() {
+		double[] values = new double[PARAMETERS.length];
+		for (FlightParameter parameter : PARAMETERS) {
+			values[parameter.ordinal()] = parameter.parse(parameter.getDefault());
+		}
+		return new FlightParameters(values);
+	}
+
+	/**
+	 * @return a copy with parameter set to value, as returned by FlightParameter.parse()
+	 */
+	public FlightParameters with(FlightParameter parameter, double value) {
+		double[] newValues = values.clone();
+		newValues[parameter.ordinal()] = value;
+		return new FlightParameters(newValues);
+	}
+
+	public double get(FlightParameter parameter) {
+		return values[parameter.ordinal()];
+	}
+
+	/**
+	 * @return the value as set, the name for a choice
+	 */
+	public String getAsString(FlightParameter parameter) {
+		return parameter.format(get(parameter));
+	}
+
+	/**
+	 * @return gp, gi, gd and gw
+	 */
+	public PIDGains getGyroGains() {
+		return gyroGains;
+	}
+
+	/**
+	 * @return sp, si, sd and sw
+	 */
+	public PIDGains getStickGains() {
+		return stickGains;
+	}
+
+	/**
+	 * @return ns between control runs
+	 */
+	public long getControlPeriod() {
+		return controlPeriod;
+	}
+
+	/**
+	 * @return mixer of the frame geometry
+	 */
+	public MotorMixer getMotorMixer() {
+		return motorMixer;
+	}
+
+	/**
+	 * @return smallest change in a motor power that is sent at once
+	 */
+	public int getMotorDeadband() {
+		return motorDeadband;
+	}
+
+	/**
+	 * @return longest ns between motor commands
+	 */
+	public long getHeartbeatPeriod() {
+		return heartbeatPeriod;
+	}
+
+	public boolean isBinaryMotorFrames() {
+		return get(FlightParameter.MOTOR_FRAME) == 0;
+	}
+}
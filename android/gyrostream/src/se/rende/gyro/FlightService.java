@@ -24,11 +24,10 @@ package se.rende.gyro;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicReference;
 
-import se.rende.gyro.BluetoothService.BluetoothServiceState;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -54,49 +53,76 @@ public class FlightService {
 	private static final int XAXIS = 0;
 	private static final int YAXIS = 1;
 	private static final int ZAXIS = 2;
-	private static final int THROW_AWAY_SAMPLES = 100;
-	private static final int CALIBATE_VALUE_COUNT = 49;
+	private static final int SETTLE_SAMPLES = 10;
+	private static final int MIN_CALIBRATE_SAMPLES = 20;
+	private static final long CALIBRATION_MAX_AGE = 7 * 24 * 3600 * 1000L; // ms
+	private static final double ACCEL_ZERO_AGREEMENT = 0.2; // m/s2
+	private static final double GYRO_ZERO_AGREEMENT = 0.01; // rad/s
 	private static final double ATTITUDE_SCALING = 1.0;
-	private FlightAngle flightAngle = new FlightAngleARG();
+	private static final int SENSOR_RING_SIZE = 64; // power of 2, 0.1s of gyro at 500Hz
+	private SensorFusion sensorFusion = new SensorFusion(new FlightAngleARG());
+	private volatile FlightController flightController;
+	private final double[] force = new double[3];
 	private PIDdata stickPID[] = new PIDdata[3];
 	private PIDdata gyroPID[] = new PIDdata[3];
-	private BluetoothService bluetoothService;
+	private MotorLink motorLink;
+	// connected at the last control cycle
+	private boolean motorLinkUp;
+	// last telemetry from esc-control, guarded by escSpeed
+	private final int[] escSpeed = new int[MotorMixer.MAX_MOTORS];
+	private int escMotorCount;
+	private int escSeq;
+	private boolean escWatchdog;
 	private SensorManager sensorManager;
 	private Sensor gyroscope;
 	private double accel[] = new double[3];
 	private double accelZero[] = new double[3];
 	private double gyro[] = new double[3];
 	private double gyroZero[] = new double[3];
-	private double accelCalibrateValues[][] = { new double[CALIBATE_VALUE_COUNT],
-			new double[CALIBATE_VALUE_COUNT], new double[CALIBATE_VALUE_COUNT] };
-	private int accelCalibrateIndex = 0;
-	private double gyroCalibrateValues[][] = { new double[CALIBATE_VALUE_COUNT],
-			new double[CALIBATE_VALUE_COUNT], new double[CALIBATE_VALUE_COUNT] };
-	private int gyroCalibrateIndex = 0;
-	private double power[] = new double[4];
+	private double quaternion[] = new double[4];
+	// m/s2: still below 0.3 std dev, moved if 1 from median, mean within 0.02
+	private StreamingCalibrator accelCalibrator = new StreamingCalibrator(
+			SETTLE_SAMPLES, MIN_CALIBRATE_SAMPLES, 0.3, 1.0, 0.02);
+	// rad/s: still below 0.03 std dev, moved if 0.15 from median, mean within 0.002
+	private StreamingCalibrator gyroCalibrator = new StreamingCalibrator(
+			SETTLE_SAMPLES, MIN_CALIBRATE_SAMPLES, 0.03, 0.15, 0.002);
+	// a few samples to check cached offsets with, same motion limits
+	private StreamingCalibrator accelValidator = new StreamingCalibrator(2, 5, 0.3, 1.0, 0.1);
+	private StreamingCalibrator gyroValidator = new StreamingCalibrator(2, 5, 0.03, 0.15, 0.005);
+	private CalibrationCache calibrationCache;
+	private GyroBiasTracker gyroBiasTracker = new GyroBiasTracker();
+	private String calibrationFingerprint;
+	private double cachedAccelZero[] = new double[3];
+	private double cachedGyroZero[] = new double[3];
+	private double power[] = new double[MotorMixer.MAX_MOTORS];
+	private final MotorCommandEncoder motorCommandEncoder = new MotorCommandEncoder();
+	private final MotorFrameEncoder motorFrameEncoder = new MotorFrameEncoder();
+	private final double[] zeroPower = new double[MotorMixer.MAX_MOTORS];
+	private final MotorCommandThrottle motorCommandThrottle = new MotorCommandThrottle();
 	private Sensor accelerometer;
 	private StickValues sticks;
 	private MySensorEventListener sensorEventListener = new MySensorEventListener();
+	private final SensorRing sensorRing = new SensorRing(SENSOR_RING_SIZE);
+	private volatile Thread controlThread;
+	// guards start and stop of controlThread, not this, that sendPower() holds
+	private final Object controlThreadLock = new Object();
+	private final Histogram controlJitter = new Histogram(); // us from scheduled start
+	private final Histogram controlExecution = new Histogram(); // us per control run
+	private volatile long missedControlCount;
 	private List<AngleListener> angleListeners = new ArrayList<FlightService.AngleListener>();
 	private boolean armed = false;
 	private SharedPreferences prefs;
-	private String[][] propNameDefaults = {
-			{"gp", "0.8"}, 
-			{"gi", "0"}, 
-			{"gd", "150"}, 
-			{"gw", "1000"}, 
-			{"sp", "0"}, 
-			{"si", "0"}, 
-			{"sd", "0"}, 
-			{"sw", "0.375"}};
+	private final AtomicReference<FlightParameters> parameters = 
+			new AtomicReference<FlightParameters>(FlightParameters.DEFAULTS);
 	private PropertyChangeSupport propertyChangeSupport = new PropertyChangeSupport(this);
 
 	private enum Mode {
-		CALIBRATION, FLIGHT
+		VALIDATION, CALIBRATION, FLIGHT
 	};
 
 	public FlightService(Context context) {
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        calibrationCache = new CalibrationCache(prefs);
 
 		sensorManager = (SensorManager) context
 				.getSystemService(Context.SENSOR_SERVICE);
@@ -105,6 +131,7 @@ public class FlightService {
 			stickPID[i] = new PIDdata();
 			gyroPID[i] = new PIDdata();
 		}
+		flightController = new AngleController(gyroPID);
 		
 		setAllFromPrefs();
 
@@ -115,26 +142,34 @@ public class FlightService {
 
 	public void start() {
 		Log.d("FlightService", "start");
-		sensorEventListener.init();
-		flightAngle.init();
-		
 		gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-		sensorManager.registerListener(sensorEventListener, gyroscope,
-				SensorManager.SENSOR_DELAY_GAME);	// 9.2ms period
-		
 		accelerometer = sensorManager
 				.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+
+		calibrationFingerprint = CalibrationCache.fingerprint(accelerometer, gyroscope);
+		boolean cached = calibrationCache.load(calibrationFingerprint, CALIBRATION_MAX_AGE, 
+				cachedAccelZero, cachedGyroZero);
+		sensorEventListener.init(cached);
+		sensorFusion.init();
+		gyroBiasTracker.start();
+		startControlThread();
+		
+		// the gyro runs as fast as it can, sensorFusion applies the
+		// accelerometer at its own rate
+		sensorManager.registerListener(sensorEventListener, gyroscope,
+				SensorManager.SENSOR_DELAY_FASTEST);
 		sensorManager.registerListener(sensorEventListener, accelerometer,
 				SensorManager.SENSOR_DELAY_GAME);	// 20ms period
 		
-		gyroPID[0].integratedError = 0;
-		gyroPID[1].integratedError = 0;
+		flightController.init();
 	}
 
 	public void stop() {
 		Log.d("FlightService", "stop");
 		sensorManager.unregisterListener(sensorEventListener, gyroscope);
 		sensorManager.unregisterListener(sensorEventListener, accelerometer);
+		stopControlThread();
+		gyroBiasTracker.stop();
 
 	}
 
@@ -142,190 +177,310 @@ public class FlightService {
 		stop();
 		start();
 	}
+
+	/**
+	 * Starts the thread that runs estimation on the samples in sensorRing
+	 * and control at the fixed rate of property cr. Max priority is
+	 * THREAD_PRIORITY_URGENT_DISPLAY on Android.
+	 */
+	private void startControlThread() {
+		synchronized (controlThreadLock) {
+			if (controlThread != null) {
+				return;
+			}
+			sensorRing.clear();
+			controlJitter.clear();
+			controlExecution.clear();
+			missedControlCount = 0;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					runControlLoop();
+				}
+			}, "FlightControl");
+			t.setDaemon(true);
+			t.setPriority(Thread.MAX_PRIORITY);
+			controlThread = t;
+			sensorRing.setConsumer(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Applies all queued samples to the estimator, then runs control when its
+	 * time has come, so control always sees the newest attitude. Waits for
+	 * whichever comes first, a sample or the next control time. When more
+	 * than a period late the missed runs are skipped and counted.
+	 */
+	private void runControlLoop() {
+		SensorRing.Sample sample = new SensorRing.Sample();
+		long period = parameters.get().getControlPeriod();
+		long nextRun = System.nanoTime() + period;
+		while (controlThread == Thread.currentThread()) {
+			if (sensorRing.poll(sample)) {
+				sensorEventListener.process(sample.type, sample.timestamp, sample.values);
+				continue;
+			}
+			long start = System.nanoTime();
+			long late = start - nextRun;
+			if (late < 0) {
+				sensorRing.await(-late);
+				continue;
+			}
+			controlJitter.record(late / 1000);
+			// one set of parameters for the whole run
+			FlightParameters runParameters = parameters.get();
+			sensorEventListener.control(runParameters, period * NS2S);
+			long end = System.nanoTime();
+			controlExecution.record((end - start) / 1000);
+			nextRun += period;
+			if (end - nextRun >= 0) {
+				long missed = (end - nextRun) / period + 1;
+				missedControlCount += missed;
+				nextRun += missed * period;
+			}
+			if (period != runParameters.getControlPeriod()) {
+				// rate changed, start over from now
+				period = runParameters.getControlPeriod();
+				nextRun = end + period;
+			}
+		}
+	}
+
+	/**
+	 * Stops the control thread and waits for it to end. Samples still in the
+	 * ring are dropped. Must not hold the FlightService lock while joining, the
+	 * control thread may be waiting for it in sendPower().
+	 */
+	private void stopControlThread() {
+		synchronized (controlThreadLock) {
+			Thread t = controlThread;
+			controlThread = null;
+			sensorRing.setConsumer(null);
+			if (t != null) {
+				t.interrupt();
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
 	
 	public class MySensorEventListener implements SensorEventListener {
-		private long lastTime;
 		Mode mode;
-		boolean accelCalibrationReady;
-		boolean gyroCalibrationReady;
 		long lastLogTime;
-		private int throwAwaySamplesLeft;
+		long calibrationStartTime;
+		boolean estimating; // attitude estimated from flight mode samples
 		
 		public MySensorEventListener() {
-			init();
+			init(false);
 		}
 		
-		private void init() {
-			mode = Mode.CALIBRATION;
-			accelCalibrationReady = false;
-			gyroCalibrationReady = false;
-			throwAwaySamplesLeft = THROW_AWAY_SAMPLES;
-			accelCalibrateIndex = 0;
-			gyroCalibrateIndex = 0;
+		/**
+		 * @param validate true to check the cached offsets instead of calibrating
+		 */
+		private synchronized void init(boolean validate) {
+			mode = validate ? Mode.VALIDATION : Mode.CALIBRATION;
+			accelValidator.init();
+			gyroValidator.init();
+			accelCalibrator.init();
+			gyroCalibrator.init();
+			calibrationStartTime = 0;
+			estimating = false;
 		}
 		
-		public synchronized void onSensorChanged(SensorEvent event) {
-			if (mode == Mode.CALIBRATION) {
-				if (throwAwaySamplesLeft > 0) {
-					throwAwaySamplesLeft--;
-					return;
+		/**
+		 * Only queues the sample for the control thread, so that a slow
+		 * bluetooth write never delays the sensor callbacks.
+		 */
+		public void onSensorChanged(SensorEvent event) {
+			sensorRing.offer(event.sensor.getType(), event.timestamp, event.values);
+		}
+
+		/**
+		 * Calibrates or flies on a sample taken from sensorRing. Runs on the
+		 * control thread.
+		 */
+		synchronized void process(int type, long timestamp, float[] values) {
+			if (mode == Mode.VALIDATION) {
+				// check that a few still samples agree with the cached offsets
+				if (calibrationStartTime == 0) {
+					calibrationStartTime = timestamp;
 				}
-				// calibration mode - collect some samples and calculate offsets from them
-				if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-					if (accelCalibrateIndex < CALIBATE_VALUE_COUNT) {
-						for (int i = 0; i < accelCalibrateValues.length; i++) {
-							accelCalibrateValues[i][accelCalibrateIndex] = event.values[i];
-						}
-						accelCalibrateIndex++;
-					} else {
-						accelCalibrationReady = true;
-					}
-				} else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-					if (gyroCalibrateIndex < CALIBATE_VALUE_COUNT) {
-						for (int i = 0; i < gyroCalibrateValues.length; i++) {
-							gyroCalibrateValues[i][gyroCalibrateIndex] = event.values[i];
-						}
-						gyroCalibrateIndex++;
+				boolean still = true;
+				if (type == Sensor.TYPE_ACCELEROMETER) {
+					still = accelValidator.add(values);
+				} else if (type == Sensor.TYPE_GYROSCOPE) {
+					still = gyroValidator.add(values);
+				}
+				if (!still) {
+					Log.d("FlightService", "motion during validation, calibrating");
+					mode = Mode.CALIBRATION;
+				} else if (accelValidator.isReady() && gyroValidator.isReady()) {
+					if (cacheAgrees()) {
+						System.arraycopy(cachedAccelZero, 0, accelZero, 0, accelZero.length);
+						System.arraycopy(cachedGyroZero, 0, gyroZero, 0, gyroZero.length);
+						logArray("accelZero", accelZero);
+						logArray("gyroZero", gyroZero);
+						Log.d("FlightService", "cached calibration validated in " 
+								+ (timestamp - calibrationStartTime) / 1000000 + "ms");
+						gyroBiasTracker.reset(gyroZero);
+						mode = Mode.FLIGHT;
 					} else {
-						gyroCalibrationReady = true;
+						Log.d("FlightService", "cached calibration disagrees, calibrating");
+						mode = Mode.CALIBRATION;
 					}
 				}
-				if (accelCalibrationReady && gyroCalibrationReady) {
-					for (int i = 0; i < gyroCalibrateValues.length; i++) {
-						Arrays.sort(accelCalibrateValues[i]);
-						accelZero[i] = accel[i] = accelCalibrateValues[i][accelCalibrateValues.length / 2];
-						accelZero[ZAXIS] = 0f;
+			} else if (mode == Mode.CALIBRATION) {
+				// calibration mode - wait for the craft to be still and calculate offsets
+				if (calibrationStartTime == 0) {
+					calibrationStartTime = timestamp;
+				}
+				boolean still = true;
+				if (type == Sensor.TYPE_ACCELEROMETER) {
+					still = accelCalibrator.add(values);
+				} else if (type == Sensor.TYPE_GYROSCOPE) {
+					still = gyroCalibrator.add(values);
+				}
+				if (!still) {
+					// both sensors see the same motion, start both over
+					Log.d("FlightService", "motion during calibration, restarting");
+					accelCalibrator.restart();
+					gyroCalibrator.restart();
+				}
+				if (accelCalibrator.isReady() && gyroCalibrator.isReady()) {
+					for (int i = 0; i < accelZero.length; i++) {
+						accelZero[i] = accel[i] = accelCalibrator.getMedian(i);
 					}
-					for (int i = 0; i < gyroCalibrateValues.length; i++) {
-						Arrays.sort(gyroCalibrateValues[i]);
-						gyroZero[i] = gyro[i] = gyroCalibrateValues[i][gyroCalibrateValues.length / 2];
+					accelZero[ZAXIS] = 0f;
+					for (int i = 0; i < gyroZero.length; i++) {
+						gyroZero[i] = gyro[i] = gyroCalibrator.getMedian(i);
 					}
 					logArray("accelZero", accelZero);
 					logArray("gyroZero", gyroZero);
+					Log.d("FlightService", "calibrated in " 
+							+ (timestamp - calibrationStartTime) / 1000000 + "ms, " 
+							+ accelCalibrator.getSampleCount() + " accel and "
+							+ gyroCalibrator.getSampleCount() + " gyro samples");
+					calibrationCache.save(calibrationFingerprint, accelZero, gyroZero);
+					gyroBiasTracker.reset(gyroZero);
 					mode = Mode.FLIGHT;
 				}
 			} else if (mode == Mode.FLIGHT) {
 				// flight mode - calculate angles and control motors
-				if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+				if (type == Sensor.TYPE_ACCELEROMETER) {
 					for (int i = 0; i < accel.length; i++) {
-						accel[i] = event.values[i] - accelZero[i];
+						accel[i] = values[i] - accelZero[i];
 					}
-				} else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-					if (lastTime != 0) {
-						final double dT = (event.timestamp - lastTime) * NS2S;
-						for (int i = 0; i < gyro.length; i++) {
-							gyro[i] = event.values[i] - gyroZero[i];
-						}
-
-						flightAngle.calculate(
-								gyro[ROLL], gyro[PITCH], gyro[YAW], 
-								accel[YAXIS], accel[XAXIS], -accel[ZAXIS], dT);
-						
-						processFlightControl(flightAngle.getAngles(), dT);
-						if ((event.timestamp - lastLogTime) * NS2S > .2) {
+					sensorFusion.accel(timestamp, accel[YAXIS], accel[XAXIS], -accel[ZAXIS]);
+				} else if (type == Sensor.TYPE_GYROSCOPE) {
+					// zero offset as tracked through the session
+					gyroBiasTracker.add(timestamp, values);
+					double[] gyroBias = gyroBiasTracker.getBias();
+					for (int i = 0; i < gyro.length; i++) {
+						gyro[i] = values[i] - gyroBias[i];
+					}
+					final double dT = sensorFusion.gyro(timestamp, gyro[ROLL], gyro[PITCH], gyro[YAW]);
+					if (dT > 0) {
+						estimating = true;
+						flightController.rate(parameters.get(), gyro[ROLL], gyro[PITCH], gyro[YAW], dT);
+						// the estimator may be replaced by setProperty at any time
+						FlightAngle flightAngle = sensorFusion.getFlightAngle();
+						if ((timestamp - lastLogTime) * NS2S > .2) {
 //							logArray("angles", flightAngle.getAngles());
 							for (AngleListener listener : angleListeners) {
 								double[] angles = flightAngle.getAngles();
 								listener.angleChanged(angles[0], angles[1], angles[2]);
 							}
-							lastLogTime = event.timestamp;
+							lastLogTime = timestamp;
 						}
 					}
-					lastTime = event.timestamp;
 				}
 			}
 		}
 
-		public void onAccuracyChanged(Sensor arg0, int arg1) {
+		/**
+		 * Runs flight control on the newest attitude. Runs on the control
+		 * thread at the control rate.
+		 * @param dT control period in seconds
+		 */
+		synchronized void control(FlightParameters parameters, double dT) {
+			if (mode == Mode.FLIGHT && estimating) {
+				sensorFusion.getFlightAngle().getQuaternion(quaternion);
+				processFlightControl(parameters, quaternion, dT);
+			}
 		}
-	};
 
-	public class PIDdata {
-		double p;
-		double i;
-		double d;
-		double o = 1;
-		double prevError = 0;
-		// AKA experiments with PID
-		// double previousPIDTime;
-		boolean firstPass = true;
-		double integratedError = 0;
-		double windupGuard; // Thinking about having individual wind up guards
-							// for each PID
-		double iState = 0;
-		public double dState;
-		
-		@Override
-		public String toString() {
-			return "PIDdata(" + p + ", " + i + ", " + d + ")";
+		/**
+		 * Returns true if the validation medians are close to the cached
+		 * offsets. Accel z holds gravity and is not an offset.
+		 */
+		private boolean cacheAgrees() {
+			for (int i = 0; i < gyroZero.length; i++) {
+				if (Math.abs(gyroValidator.getMedian(i) - cachedGyroZero[i]) > GYRO_ZERO_AGREEMENT) {
+					return false;
+				}
+			}
+			for (int i = 0; i < accelZero.length; i++) {
+				if (i != ZAXIS 
+						&& Math.abs(accelValidator.getMedian(i) - cachedAccelZero[i]) > ACCEL_ZERO_AGREEMENT) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void onAccuracyChanged(Sensor arg0, int arg1) {
 		}
-	} // PID
+	};
 
 	public interface AngleListener {
 		void angleChanged(double pitch, double roll, double yaw);
 	}
 
-	protected void processFlightControl(double[] angles, double dT) {
+	/**
+	 * Calculates motor power from the attitude with the selected
+	 * FlightController and sends it to the motors.
+	 * @param parameters gains and settings for this run
+	 * @param q attitude quaternion
+	 * @param dT time since last call in seconds
+	 */
+	protected void processFlightControl(FlightParameters parameters, double[] q, double dT) {
 		double pitchAttitudeCmd = sticks.forward * ATTITUDE_SCALING;
 		double rollAttitudeCmd = sticks.right * ATTITUDE_SCALING;
 		
-		double pitchForce = updatePID(pitchAttitudeCmd, -angles[PITCH], gyroPID[PITCH], dT, "gyroPID[PITCH]");
-		double rollForce = updatePID(rollAttitudeCmd, angles[ROLL], gyroPID[ROLL],	dT, "gyroPID[ROLL]");
-
-		double yawForce = 0;
+		flightController.control(parameters, q, pitchAttitudeCmd, rollAttitudeCmd, sticks.turnCw, dT, force);
+		double pitchForce = force[PITCH];
+		double rollForce = force[ROLL];
+		double yawForce = force[YAW];
 
 		// pitch v up from horizontal
 		// roll v right from horizontal
-		// 3 2
-		// 1 0
-		power[3] = sticks.up - pitchForce + rollForce - yawForce;
-		power[2] = sticks.up - pitchForce - rollForce + yawForce;
-		power[1] = sticks.up + pitchForce + rollForce + yawForce;
-		power[0] = sticks.up + pitchForce - rollForce - yawForce;
-		
+		MotorMixer motorMixer = parameters.getMotorMixer();
 		if (sticks.up > 0f) {
-			// limit 
-			for (int i = 0; i < power.length; i++) {
-				power[i] = Math.max(0f, Math.min(255f, power[i]));
-			}
+			motorMixer.mix(sticks.up, pitchForce, rollForce, yawForce, 0, 255, power);
 		} else {
 			// turn off motors unconditionally when no up thrust
 			for (int i = 0; i < power.length; i++) {
 				power[i] = 0f;
 			}
 		}
-		String message = "p" + (int) (power[0]) + " " + (int) (power[1]) + " "
-				+ (int) (power[2]) + " " + (int) (power[3]) + "\r";
-		if (isArmed()) {
-			// send power settings command to motors
-			sendBluetooth(message);
+		MotorLink link = motorLink;
+		boolean linkUp = link != null && link.isConnected();
+		if (linkUp && !motorLinkUp) {
+			// esc-control may have stopped the motors while the link was down
+			motorCommandThrottle.invalidate();
+		}
+		motorLinkUp = linkUp;
+		if (isArmed() && motorCommandThrottle.shouldSend(power, motorMixer.getMotorCount(), System.nanoTime(),
+				parameters.getMotorDeadband(), parameters.getHeartbeatPeriod())) {
+			// send power settings command to motors, if changed or for the watchdog
+			sendPower(parameters, power);
 		}
 		
 		// log power settings command
-//		Log.d("roll-pid", String.format("roll a %10.3f p %10.3f", angles[ROLL], power[0]));
-	}
-
-	long lastTime = 0;
-	/**
-	 * After http://en.wikipedia.org/wiki/PID_controller.
-	 * @param targetPosition
-	 * @param currentPosition
-	 * @param pid
-	 * @param dt
-	 * @param label
-	 * @return
-	 */
-	double updatePID(double targetPosition, double currentPosition, PIDdata pid, double dt, String label) {
-		  double error = targetPosition - currentPosition;
-		  pid.integratedError += error * dt;
-		  if (pid.integratedError > pid.windupGuard) {
-			  pid.integratedError = pid.windupGuard;
-		  } else if (pid.integratedError < -pid.windupGuard) {
-			  pid.integratedError = -pid.windupGuard;
-		  }
-		  double derivative = (error - pid.prevError) / dt;
-		  pid.prevError = error;
-		  return (pid.p * error) + (pid.i * pid.integratedError) + (pid.d * derivative);
+//		Log.d("roll-pid", String.format("roll a %10.3f p %10.3f", NexterUtil.tiltRoll(q), power[0]));
 	}
 
 	protected void logArray(String label, double[] a) {
@@ -344,10 +499,34 @@ public class FlightService {
 		return power;
 	}
 
-	public void setBluetoothService(BluetoothService bluetoothService) {
-		this.bluetoothService = bluetoothService;
+	/**
+	 * @param motorLink to send motor frames on, BluetoothService on the phone
+	 */
+	public void setMotorLink(MotorLink motorLink) {
+		this.motorLink = motorLink;
+		if (motorLink != null) {
+			motorLink.setTelemetryListener(telemetryListener);
+		}
 	}
 
+	/**
+	 * Keeps the last telemetry from esc-control, called on the link read thread.
+	 */
+	private final TelemetryDecoder.Listener telemetryListener = new TelemetryDecoder.Listener() {
+		public void telemetryReceived(TelemetryDecoder.Telemetry telemetry) {
+			synchronized (escSpeed) {
+				escSeq = telemetry.seq;
+				escWatchdog = telemetry.isWatchdogStopped();
+				escMotorCount = telemetry.motorCount;
+				System.arraycopy(telemetry.speed, 0, escSpeed, 0, telemetry.motorCount);
+			}
+		}
+
+		public void textReceived(byte[] line, int length) {
+			Log.d("FlightService", "esc: " + new String(line, 0, length));
+		}
+	};
+
 	public void setSticks(StickValues sticks) {
 		this.sticks = sticks;
 		propertyChangeSupport.firePropertyChange("sticks", null, sticks);
@@ -395,6 +574,9 @@ public class FlightService {
 			setArmed(true);
 		} else if ("disarm".equals(verb)) {
 			setArmed(false);
+		} else if ("recalibrate".equals(verb)) {
+			calibrationCache.clear();
+			reset();
 		} else {
 			cmdTaken = false;
 		}
@@ -402,69 +584,103 @@ public class FlightService {
 	}
 
 	/**
-	 * load parameters from android prefs or propNameDefaults.
+	 * load parameters from android prefs or FlightParameter defaults.
 	 */
 	public void setAllFromPrefs() {		
-		for (String[] propNameDefault : propNameDefaults) {
-			setProperty(propNameDefault[0], prefs.getString(propNameDefault[0], propNameDefault[1]));
+		for (FlightParameter parameter : FlightParameter.values()) {
+			String value = prefs.getString(parameter.getName(), parameter.getDefault());
+			try {
+				setProperty(parameter.getName(), value);
+			} catch (IllegalArgumentException e) {
+				Log.d("FlightService", "bad saved " + parameter.getName() + " " + value + ", using default");
+				setProperty(parameter.getName(), parameter.getDefault());
+			}
 		}
 	}
 	
 	/**
-	 * Returns a string with property name value\n for each property in propNameDefaults.
+	 * Returns a string with property name value\n for each FlightParameter.
 	 * @return
 	 */
 	public String getAllProps() {
 		StringBuilder sb = new StringBuilder();
-		for (String[] propNameDefault : propNameDefaults) {
-			sb.append("property " + propNameDefault[0] + " " + getPropAsString(propNameDefault[0]) + "\n");
+		FlightParameters current = parameters.get();
+		for (FlightParameter parameter : FlightParameter.values()) {
+			sb.append("property " + parameter.getName() + " " + current.getAsString(parameter) + "\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a string with stat name value\n for each runtime counter.
+	 */
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("stat sensorQueueDepth " + sensorRing.getDepth() + "\n");
+		sb.append("stat sensorQueueMaxDepth " + sensorRing.getMaxDepth() + "\n");
+		sb.append("stat sensorOverruns " + sensorRing.getOverrunCount() + "\n");
+		sb.append("stat controlJitterUs " + controlJitter + "\n");
+		sb.append("stat controlExecutionUs " + controlExecution + "\n");
+		sb.append("stat controlMissed " + missedControlCount + "\n");
+		sb.append("stat motorFramesSent " + motorCommandThrottle.getSentCount() + "\n");
+		sb.append("stat motorFramesSuppressed " + motorCommandThrottle.getSuppressedCount() + "\n");
+		MotorLink motorLink = this.motorLink;
+		if (motorLink != null) {
+			sb.append("stat linkFramesWritten " + motorLink.getWrittenFrameCount() + "\n");
+			sb.append("stat linkFramesDropped " + motorLink.getDroppedFrameCount() + "\n");
+			sb.append("stat telemetryFrames " + motorLink.getTelemetryFrameCount() + "\n");
+			sb.append("stat telemetryErrors " + motorLink.getTelemetryErrorCount() + "\n");
+			LinkStats linkStats = motorLink.getLinkStats();
+			if (linkStats != null) {
+				sb.append("stat linkRttUs " + linkStats.getRoundTrip() + "\n");
+				sb.append("stat linkWriteBlockingUs " + linkStats.getWriteBlocking() + "\n");
+				sb.append("stat linkBytesPerSecond " + Math.round(linkStats.getBytesPerSecond()) + "\n");
+				sb.append("stat linkFramesPerSecond " + Math.round(linkStats.getFramesPerSecond()) + "\n");
+				sb.append("stat linkBytesReadPerSecond " + Math.round(linkStats.getBytesReadPerSecond()) + "\n");
+				sb.append("stat linkAcked " + linkStats.getAckedCount() + "\n");
+				sb.append("stat linkAckLost " + linkStats.getLostCount() + "\n");
+				sb.append("stat linkAckLossPercent " + Math.round(10000 * linkStats.getAckLossRate()) / 100.0 + "\n");
+			}
+		}
+		synchronized (escSpeed) {
+			sb.append("stat escSeq " + escSeq + "\n");
+			sb.append("stat escWatchdog " + escWatchdog + "\n");
+			sb.append("stat escSpeeds");
+			for (int i = 0; i < escMotorCount; i++) {
+				sb.append(" " + escSpeed[i]);
+			}
+			sb.append("\n");
 		}
 		return sb.toString();
 	}
 
 	/**
 	 * Sets property to value, and return true if the property exists and was set.
+	 * The change is published as a new FlightParameters, so the control
+	 * thread sees all of it or nothing.
 	 * @param propName
 	 * @param value
 	 * @return true if set, false if not a valid property
-	 * @throws NumberFormatException if value is not parsable to the property datatype
+	 * @throws IllegalArgumentException if value is not parsable to the property datatype
 	 */
 	public boolean setProperty(String propName, String value) {
-		if ("gp".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			gyroPID[0].p = doubleValue;
-			gyroPID[1].p = doubleValue;
-		} else if ("gi".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			gyroPID[0].i = doubleValue;
-			gyroPID[1].i = doubleValue;
-		} else if ("gd".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			gyroPID[0].d = doubleValue;
-			gyroPID[1].d = doubleValue;
-		} else if ("gw".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			gyroPID[0].windupGuard = doubleValue;
-			gyroPID[1].windupGuard = doubleValue;
-		} else if ("sp".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			stickPID[0].p = doubleValue;
-			stickPID[1].p = doubleValue;
-		} else if ("si".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			stickPID[0].i = doubleValue;
-			stickPID[1].i = doubleValue;
-		} else if ("sd".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			stickPID[0].d = doubleValue;
-			stickPID[1].d = doubleValue;
-		} else if ("sw".equals(propName)) {
-			double doubleValue = Double.parseDouble(value);
-			stickPID[0].windupGuard = doubleValue;
-			stickPID[1].windupGuard = doubleValue;
-		} else {
+		FlightParameter parameter = FlightParameter.forName(propName);
+		if (parameter == null) {
 			return false;
 		}
+		double parsed = parameter.parse(value);
+		FlightParameters current;
+		FlightParameters updated;
+		do {
+			current = parameters.get();
+			updated = current.with(parameter, parsed);
+		} while (!parameters.compareAndSet(current, updated));
+
+		if (parameter == FlightParameter.ESTIMATOR) {
+			setFlightAngle(value);
+		} else if (parameter == FlightParameter.CONTROLLER) {
+			setFlightController(value);
+		}
 		propertyChangeSupport.firePropertyChange(propName, null, value);
 		return true;
 	}
@@ -475,36 +691,83 @@ public class FlightService {
 	 * @return the value string, or null if not found
 	 */
 	public String getPropAsString(String propName) {
-		if ("gp".equals(propName)) {
-			return Double.toString(gyroPID[0].p);
-		} else if ("gi".equals(propName)) {
-			return Double.toString(gyroPID[1].i);
-		} else if ("gd".equals(propName)) {
-			return Double.toString(gyroPID[1].d);
-		} else if ("gw".equals(propName)) {
-			return Double.toString(gyroPID[1].windupGuard);
-		} else if ("sp".equals(propName)) {
-			return Double.toString(stickPID[1].p);
-		} else if ("si".equals(propName)) {
-			return Double.toString(stickPID[1].i);
-		} else if ("sd".equals(propName)) {
-			return Double.toString(stickPID[1].d);
-		} else if ("sw".equals(propName)) {
-			return Double.toString(stickPID[1].windupGuard);
+		FlightParameter parameter = FlightParameter.forName(propName);
+		return parameter != null ? parameters.get().getAsString(parameter) : null;
+	}
+
+	/**
+	 * Replaces the attitude estimator. The new one starts from its initial
+	 * state, so switch while on the ground.
+	 * @param name arg, argf, argfixed, madgwick or eskf
+	 * @throws IllegalArgumentException if name is not a known estimator
+	 */
+	private void setFlightAngle(String name) {
+		FlightAngle newFlightAngle;
+		if ("arg".equals(name)) {
+			newFlightAngle = new FlightAngleARG();
+		} else if ("argf".equals(name)) {
+			newFlightAngle = new FlightAngleARGFloat();
+		} else if ("argfixed".equals(name)) {
+			newFlightAngle = new FlightAngleARGFixed();
+		} else if ("madgwick".equals(name)) {
+			newFlightAngle = new FlightAngleMadgwick();
+		} else if ("eskf".equals(name)) {
+			newFlightAngle = new FlightAngleESKF();
 		} else {
-			return null;
+			throw new IllegalArgumentException("unknown estimator " + name);
 		}
+		sensorFusion.setFlightAngle(newFlightAngle);
+	}
+
+	/**
+	 * Replaces the flight controller, taking effect at the next sample. The
+	 * new controller starts from zero integrals, so switch while on the
+	 * ground.
+	 * @param name angle for single stage on gyroPID, cascaded for stickPID
+	 * angle loop feeding a gyroPID rate loop
+	 * @throws IllegalArgumentException if name is not a known controller
+	 */
+	private void setFlightController(String name) {
+		FlightController newFlightController;
+		if ("angle".equals(name)) {
+			newFlightController = new AngleController(gyroPID);
+		} else if ("cascaded".equals(name)) {
+			newFlightController = new CascadedController(stickPID, gyroPID);
+		} else {
+			throw new IllegalArgumentException("unknown controller " + name);
+		}
+		newFlightController.init();
+		flightController = newFlightController;
 	}
 
 	public void setArmed(boolean armed) {
 		this.armed = armed;
-		sendBluetooth("p0 0 0 0\r");
+		// turn off all motors, and send the first command after arming whatever it is
+		sendPower(parameters.get(), zeroPower);
+		motorCommandThrottle.invalidate();
 	}
 
-	private void sendBluetooth(String command) {
-		if (bluetoothService != null && bluetoothService.getState() == BluetoothServiceState.CONNECTED) {
-			// turn off all four motors
-			bluetoothService.write(command.getBytes());
+	/**
+	 * Sends power to the motors as binary frame or ascii command depending on property mf.
+	 */
+	private synchronized void sendPower(FlightParameters parameters, double[] power) {
+		int motors = parameters.getMotorMixer().getMotorCount();
+		if (parameters.isBinaryMotorFrames()) {
+			int length = motorFrameEncoder.encode(power, motors);
+			sendFrame(motorFrameEncoder.getBuffer(), 0, length);
+		} else {
+			int length = motorCommandEncoder.encode(power, motors);
+			sendFrame(motorCommandEncoder.getBuffer(), 0, length);
+		}
+	}
+
+	/**
+	 * Sends without allocating, buffer may be reused when this returns.
+	 */
+	private void sendFrame(byte[] buffer, int offset, int len) {
+		MotorLink motorLink = this.motorLink;
+		if (motorLink != null) {
+			motorLink.write(buffer, offset, len);
 		}
 	}
 
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Follows the gyro zero offset as it drifts with temperature during a
+ * session, by learning from windows where the craft is near stationary - on
+ * the ground, disarmed or in a steady hover.
+ * <p>
+ * The sensor thread only sums raw samples into windows of windowLength ns and
+ * hands each finished window to a background thread through a single
+ * producer single consumer ring. The background thread takes a run of
+ * stillWindows windows as stationary if each has a low standard deviation,
+ * their means agree and they are close to the current offset, and then
+ * moves the offset a fraction of the way towards their mean. The new offset
+ * is published as a fresh array in an AtomicReference, so the sensor thread
+ * reads it without locking and never sees half an update.
+ * @author dag
+ *
+ */
+public class GyroBiasTracker {
+	private static final String TAG = "GyroBiasTracker";
+	private static final int AXES = 3;
+	private static final int QUEUE_SIZE = 8; // power of 2
+	private long windowLength = 500000000; // ns
+	private int stillWindows = 3; // consecutive still windows needed for an update
+	private double stillThreshold = 0.05; // rad/s, largest standard deviation within a window
+	private double agreement = 0.01; // rad/s, largest spread of window means in a run
+	private double maxDrift = 0.05; // rad/s, largest distance of a run from the current offset
+	private double gain = 0.1; // fraction of the distance to move per run
+
+	private final AtomicReference<double[]> bias = new AtomicReference<double[]>(new double[AXES]);
+
+	// window being filled, owned by the sensor thread
+	private long windowStart;
+	private final double[] sum = new double[AXES];
+	private final double[] sumSquares = new double[AXES];
+	private int count;
+
+	// finished windows, written by the sensor thread, read by the tracker thread
+	private final double[] queueMean = new double[QUEUE_SIZE * AXES];
+	private final double[] queueVariance = new double[QUEUE_SIZE * AXES];
+	private volatile int head; // next to read
+	private volatile int tail; // next to write
+	private volatile int generation; // bumped by reset() to drop the run in progress
+	private volatile Thread thread;
+	private volatile long droppedWindowCount;
+	private volatile long updateCount;
+
+	// run of still windows, owned by the tracker thread
+	private final double[] runMin = new double[AXES];
+	private final double[] runMax = new double[AXES];
+	private final double[] runSum = new double[AXES];
+	private int runLength;
+
+	/**
+	 * Starts the tracker thread.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				track();
+			}
+		}, TAG);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the tracker thread and waits for it to end. The offset stays as
+	 * it is.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		thread = null;
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Sets the offset, as after a calibration, and forgets windows seen
+	 * so far. Call from the sensor thread.
+	 */
+	public void reset(double[] zero) {
+		bias.set(zero.clone());
+		windowStart = 0;
+		generation++;
+	}
+
+	/**
+	 * @return the current offset, do not modify
+	 */
+	public double[] getBias() {
+		return bias.get();
+	}
+
+	/**
+	 * Adds a raw gyro sample. Call from the sensor thread, nothing is
+	 * allocated or locked.
+	 */
+	public void add(long timestamp, float[] values) {
+		if (windowStart == 0) {
+			windowStart = timestamp;
+			count = 0;
+			for (int axis = 0; axis < AXES; axis++) {
+				sum[axis] = 0;
+				sumSquares[axis] = 0;
+			}
+		}
+		for (int axis = 0; axis < AXES; axis++) {
+			sum[axis] += values[axis];
+			sumSquares[axis] += values[axis] * values[axis];
+		}
+		count++;
+		if (timestamp - windowStart >= windowLength && count > 1) {
+			publishWindow();
+			windowStart = 0;
+		}
+	}
+
+	private void publishWindow() {
+		int t = tail;
+		int next = (t + 1) & (QUEUE_SIZE - 1);
+		if (next == head) {
+			// tracker thread is behind, this window is lost
+			droppedWindowCount++;
+			return;
+		}
+		for (int axis = 0; axis < AXES; axis++) {
+			double mean = sum[axis] / count;
+			queueMean[t * AXES + axis] = mean;
+			queueVariance[t * AXES + axis] = Math.max(0, (sumSquares[axis] - count * mean * mean) / (count - 1));
+		}
+		tail = next;
+		Thread consumer = thread;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private void track() {
+		int seenGeneration = generation;
+		while (thread == Thread.currentThread()) {
+			if (head == tail) {
+				LockSupport.park(this);
+				continue;
+			}
+			if (seenGeneration != generation) {
+				seenGeneration = generation;
+				runLength = 0;
+			}
+			int h = head;
+			evaluate(h * AXES);
+			head = (h + 1) & (QUEUE_SIZE - 1);
+		}
+	}
+
+	/**
+	 * Extends or breaks the run of still windows with the window at index,
+	 * and updates the offset when the run is long enough.
+	 */
+	private void evaluate(int index) {
+		double[] current = bias.get();
+		boolean still = true;
+		for (int axis = 0; axis < AXES; axis++) {
+			double mean = queueMean[index + axis];
+			if (queueVariance[index + axis] > stillThreshold * stillThreshold
+					|| Math.abs(mean - current[axis]) > maxDrift) {
+				still = false;
+			} else if (runLength > 0 && (Math.max(runMax[axis], mean) - Math.min(runMin[axis], mean) > agreement)) {
+				still = false;
+			}
+		}
+		if (!still) {
+			runLength = 0;
+			return;
+		}
+		for (int axis = 0; axis < AXES; axis++) {
+			double mean = queueMean[index + axis];
+			if (runLength == 0) {
+				runMin[axis] = mean;
+				runMax[axis] = mean;
+				runSum[axis] = 0;
+			}
+			runMin[axis] = Math.min(runMin[axis], mean);
+			runMax[axis] = Math.max(runMax[axis], mean);
+			runSum[axis] += mean;
+		}
+		runLength++;
+		if (runLength >= stillWindows) {
+			double[] next = new double[AXES];
+			for (int axis = 0; axis < AXES; axis++) {
+				next[axis] = current[axis] + gain * (runSum[axis] / runLength - current[axis]);
+			}
+			// lost if reset() came in between, the run was from before it anyway
+			if (bias.compareAndSet(current, next)) {
+				updateCount++;
+				Log.d(TAG, "gyro zero " + next[0] + ", " + next[1] + ", " + next[2]);
+			}
+			runLength = 0;
+		}
+	}
+
+	public void setWindowLength(long windowLength) {
+		this.windowLength = windowLength;
+	}
+
+	/**
+	 * @return number of offset updates since start
+	 */
+	public long getUpdateCount() {
+		return updateCount;
+	}
+
+	/**
+	 * @return number of windows lost because the tracker thread was behind
+	 */
+	public long getDroppedWindowCount() {
+		return droppedWindowCount;
+	}
+}
@@ -212,6 +212,13 @@ public class GyroStream extends Activity {
 			
 		} else if ("getProps".equals(cmd)) {
 			gyroServer.writeLine(flightService.getAllProps());
+		} else if ("getStats".equals(cmd)) {
+			String stats = flightService.getStats();
+			if (bluetoothService != null) {
+				stats += bluetoothService.getStats();
+			}
+			stats += gyroServer.getStats();
+			gyroServer.writeLine(stats);
 		} else if (flightService.executeCommand(cmd)) {
 			Toast.makeText(this, cmd, Toast.LENGTH_SHORT).show();
 		}
@@ -269,7 +276,9 @@ public class GyroStream extends Activity {
 
 	private void setupBluetoothService() {
         bluetoothService = new BluetoothService(this, bluetoothHandler);
-        flightService.setBluetoothService(bluetoothService);
+        flightService.setMotorLink(bluetoothService);
+        // straight to the last device, scan from the menu for another
+        bluetoothService.connectLastDevice();
 	}
 	
     // The Handler that gets information back from the BluetoothService
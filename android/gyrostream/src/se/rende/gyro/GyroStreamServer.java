@@ -1,8 +1,8 @@
 /*
  * Copyright (C) 2014 Dag Rende
- * 
+ *
  * Licensed under the GNU General Public License v3
- * 
+ *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -22,19 +22,32 @@
 package se.rende.gyro;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
 /**
  * Let you communicate with the GyroStream server. Write lines to the server and receive lines from it through a listener.
+ * <p>
+ * Any number of clients, such as a stick controller and telemetry viewers, may
+ * be connected at once. One thread serves them all with a non-blocking
+ * Selector. Lines from every client go to the listeners, and writeLine()
+ * sends a line to every client. Each client has a bounded output buffer, and
+ * a line that does not fit is dropped for that client only, so a slow viewer
+ * never holds up the others or the caller.
  * @author dag
  *
  */
@@ -45,41 +58,73 @@ public class GyroStreamServer {
 	public static final int MESSAGE_DISCONNECT = 2;
 	public static final int MESSAGE_RECEIVED_LINE = 3;
 	public static final int MESSAGE_ERROR = 4;
+	private static final int READ_BUFFER_SIZE = 4096; // longest line from a client
+	private static final int WRITE_BUFFER_SIZE = 65536; // per client, about a second of telemetry
 	Pattern connectCommandPattern = Pattern.compile("^connect (\\w+)$");
 	Pattern disconnectCommandPattern = Pattern.compile("^disconnect (\\w+)$");
-	Status status = Status.UNCONNECTED;
-	private ServerSocket listener;
-	private Socket socket;
-	private Writer wr = null;
+	volatile Status status = Status.UNCONNECTED;
+	private Selector selector;
+	private ServerSocketChannel listener;
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+	// clients with new output, for the selector thread to register for writing
+	private final ConcurrentLinkedQueue<Client> writeReady = new ConcurrentLinkedQueue<Client>();
+	private volatile long droppedLineCount;
 	private int port = 8081;
 	List<MessageListener> listeners = new ArrayList<MessageListener>();
 	private final String name;
-	public List<String> connectedClients = new ArrayList<String>();
+	public List<String> connectedClients = new CopyOnWriteArrayList<String>();
 	
 	public GyroStreamServer(String name, int port) {
 		this.name = name;
 		this.port = port;
 	}
 	
-	public void start() {
-		ReaderThread readerThread = new ReaderThread();
-		readerThread.start();
+	public synchronized void start() {
+		if (selector != null) {
+			return;
+		}
+		try {
+			selector = Selector.open();
+			listener = ServerSocketChannel.open();
+			listener.socket().setReuseAddress(true);
+			listener.socket().bind(new InetSocketAddress(port));
+			listener.configureBlocking(false);
+			listener.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			sendHandlerMessage(MESSAGE_ERROR, e.toString());
+			e.printStackTrace();
+			close();
+			return;
+		}
+		status = Status.LISTENING;
+		SelectorThread selectorThread = new SelectorThread(selector);
+		selectorThread.start();
 	}
 	
-	public void stop() {
-		if (socket != null) {
-			try {
-				socket.close();
+	public synchronized void stop() {
+		close();
+	}
+
+	private void close() {
+		if (selector == null) {
+			return;
+		}
+		try {
+			// ends the selector thread
+			selector.close();
+			if (listener != null) {
 				listener.close();
-			} catch (IOException e) {
-				sendHandlerMessage(MESSAGE_ERROR, e.toString());
-				e.printStackTrace();
-			} finally {
-				status = Status.UNCONNECTED;
-				socket = null;
-				sendHandlerMessage(MESSAGE_DISCONNECT);
 			}
+		} catch (IOException e) {
+			sendHandlerMessage(MESSAGE_ERROR, e.toString());
+			e.printStackTrace();
+		}
+		for (Client client : clients) {
+			disconnect(client);
 		}
+		selector = null;
+		listener = null;
+		status = Status.UNCONNECTED;
 	}
 	
 	/**
@@ -90,40 +135,181 @@ public class GyroStreamServer {
 		return connectedClients;
 	}
 
-	class ReaderThread extends Thread {
+	/**
+	 * Serves all clients until the selector is closed.
+	 */
+	class SelectorThread extends Thread {
+		private final Selector selector;
+
+		SelectorThread(Selector selector) {
+			super("GyroStreamServer");
+			this.selector = selector;
+		}
 
 		@Override
 		public void run() {
 			try {
-				listener = new ServerSocket(port, 0, null);
-				while (true) {
-					socket = listener.accept();
-					status = Status.CONNECTED;
-					BufferedReader br = new BufferedReader(
-							new InputStreamReader(socket.getInputStream()));
-					wr = new OutputStreamWriter(socket.getOutputStream());
-					wr.write("connect " + name + "\r");
-					wr.flush();
-					sendHandlerMessage(MESSAGE_CONNECT);
-					while (true) {
-						String line = br.readLine();
-						if (line == null) {
-							break;
+				while (selector.isOpen()) {
+					selector.select();
+					Client ready;
+					while ((ready = writeReady.poll()) != null) {
+						SelectionKey key = ready.channel.keyFor(selector);
+						if (key != null && key.isValid()) {
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						}
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Client client = (Client) key.attachment();
+							try {
+								if (key.isReadable()) {
+									client.read();
+								}
+								if (key.isValid() && key.isWritable()) {
+									client.write(key);
+								}
+							} catch (IOException e) {
+								disconnect(client);
+							} catch (CancelledKeyException e) {
+								disconnect(client);
+							}
 						}
-						sendHandlerMessage(MESSAGE_RECEIVED_LINE, line);
 					}
-					status = Status.UNCONNECTED;
-					sendHandlerMessage(MESSAGE_DISCONNECT);
 				}
+			} catch (ClosedSelectorException e) {
+				// stopped
 			} catch (IOException e) {
 				sendHandlerMessage(MESSAGE_ERROR, e.toString());
 				e.printStackTrace();
-			} finally {
-				status = Status.UNCONNECTED;
-				sendHandlerMessage(MESSAGE_DISCONNECT);
 			}
 		}
 
+		private void accept() throws IOException {
+			SocketChannel channel = listener.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel);
+			channel.register(selector, SelectionKey.OP_READ, client);
+			clients.add(client);
+			connectedClients.add(client.name);
+			status = Status.CONNECTED;
+			client.offer(toBytes("connect " + name + "\r"));
+			sendHandlerMessage(MESSAGE_CONNECT, client.name);
+		}
+	}
+
+	/**
+	 * One connected client, with its line assembly and output buffers.
+	 */
+	class Client {
+		final SocketChannel channel;
+		final String name;
+		private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE); // guarded by this
+		private boolean skipLine; // rest of a too long line
+		private boolean afterCr; // last line ended with \r, a following \n belongs to it
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+			name = String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+
+		/**
+		 * Reads what is available and passes on complete lines, ended by
+		 * \r, \n or \r\n as BufferedReader.readLine() takes them.
+		 */
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				throw new IOException("closed by client");
+			}
+			in.flip();
+			int start = 0;
+			for (int i = 0; i < in.limit(); i++) {
+				byte b = in.get(i);
+				if (b == '\n' && afterCr) {
+					afterCr = false;
+					start = i + 1;
+				} else if (b == '\r' || b == '\n') {
+					if (!skipLine) {
+						sendHandlerMessage(MESSAGE_RECEIVED_LINE,
+								new String(in.array(), start, i - start));
+					}
+					skipLine = false;
+					afterCr = b == '\r';
+					start = i + 1;
+				} else {
+					afterCr = false;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				// too long for a command, drop it up to the next line end
+				in.clear();
+				skipLine = true;
+			}
+		}
+
+		/**
+		 * Adds a line to the output if it fits whole.
+		 * @return false if it was dropped
+		 */
+		synchronized boolean offer(byte[] line) {
+			if (out.remaining() < line.length) {
+				return false;
+			}
+			out.put(line);
+			writeReady.add(this);
+			return true;
+		}
+
+		/**
+		 * Writes what the socket takes, and stops asking for write readiness
+		 * when all is written.
+		 */
+		synchronized void write(SelectionKey key) throws IOException {
+			out.flip();
+			channel.write(out);
+			out.compact();
+			if (out.position() == 0) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	private void disconnect(Client client) {
+		if (!clients.remove(client)) {
+			return;
+		}
+		connectedClients.remove(client.name);
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// gone anyway
+		}
+		if (clients.isEmpty() && status == Status.CONNECTED) {
+			status = Status.LISTENING;
+		}
+		sendHandlerMessage(MESSAGE_DISCONNECT, client.name);
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 	
 	private void sendHandlerMessage(int messageType, String messageText) {
@@ -132,24 +318,43 @@ public class GyroStreamServer {
 		}
 	}
 	
-	private void sendHandlerMessage(int messageType) {
-		sendHandlerMessage(messageType, null);
-	}
-
 	/**
-	 * Sends a line to the connected client, if any.
+	 * Sends a line to all connected clients, without waiting for any of them.
+	 * A client whose output buffer is full misses the line.
 	 * @param line
 	 */
-	public synchronized void writeLine(String line) {
-		if (wr != null) {
-			try {
-				wr.write(line + "\n");
-				wr.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
+	public void writeLine(String line) {
+		if (clients.isEmpty()) {
+			return;
+		}
+		byte[] bytes = toBytes(line + "\n");
+		boolean offered = false;
+		for (Client client : clients) {
+			if (client.offer(bytes)) {
+				offered = true;
+			} else {
+				droppedLineCount++;
 			}
 		}
-		
+		Selector s = selector;
+		if (offered && s != null) {
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * @return number of lines not sent to a client because its output buffer was full
+	 */
+	public long getDroppedLineCount() {
+		return droppedLineCount;
+	}
+
+	/**
+	 * Returns a string with stat name value\n for the clients.
+	 */
+	public String getStats() {
+		return "stat streamClients " + clients.size() + "\n"
+				+ "stat streamLinesDropped " + droppedLineCount + "\n";
 	}
 
 	public int getPort() {
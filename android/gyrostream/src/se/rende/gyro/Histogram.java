@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Histogram of non negative values, such as times in us, with buckets 1 wide
+ * up to 16 and then 8 buckets per power of 2, so percentiles are within
+ * 12.5% at any scale.
+ * <p>
+ * record() allocates nothing. It is meant for one writing thread; other
+ * threads may read while it records and then get slightly stale figures.
+ * @author dag
+ *
+ */
+public class Histogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+	private final long[] counts = new long[BUCKETS];
+	private volatile long count;
+	private volatile long max;
+	private volatile long sum;
+
+	/**
+	 * Adds a value, negative values count as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+		count++;
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		max = 0;
+		sum = 0;
+	}
+
+	static int index(long value) {
+		if (value < 2 * SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+	}
+
+	/**
+	 * @return smallest value in bucket index
+	 */
+	static long lowestValue(int index) {
+		if (index < 2 * SUB) {
+			return index;
+		}
+		int shift = index / SUB - 1;
+		return (long) (index % SUB + SUB) << shift;
+	}
+
+	/**
+	 * @param fraction 0-1, 0.5 for the median
+	 * @return lowest value of the bucket holding that fraction of the values, 0 if empty
+	 */
+	public long getPercentile(double fraction) {
+		long total = count;
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(lowestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		long total = count;
+		return total == 0 ? 0 : (double) sum / total;
+	}
+
+	/**
+	 * @return "count n mean m p50 a p90 b p99 c max d"
+	 */
+	@Override
+	public String toString() {
+		return "count " + getCount() + " mean " + Math.round(getMean()) + " p50 " + getPercentile(0.5)
+				+ " p90 " + getPercentile(0.9) + " p99 " + getPercentile(0.99) + " max " + getMax();
+	}
+}
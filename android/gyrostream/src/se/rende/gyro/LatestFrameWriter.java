@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a stream on its own thread, newest frame only. offer()
+ * puts a frame in a single slot mailbox and returns at once. If the stream
+ * is slow and the slot still holds an unsent frame, that frame is replaced
+ * and counted as dropped, so the stream never falls behind with stale motor
+ * commands and the caller never waits for it.
+ * <p>
+ * Writes are made while holding the lock of the stream, so that other
+ * writers to it can keep their bytes together the same way.
+ * @author dag
+ *
+ */
+public class LatestFrameWriter {
+	private static final String NAME = "LatestFrameWriter";
+	private final OutputStream out;
+	private final LinkStats stats;
+	private final byte[] pending;
+	private final byte[] writing;
+	private int pendingLength = -1; // -1 when the slot is empty
+	private volatile Thread thread;
+	private volatile long offeredCount;
+	private volatile long writtenCount;
+	private volatile long droppedCount;
+	private volatile IOException failure;
+
+	/**
+	 * @param capacity largest frame
+	 */
+	public LatestFrameWriter(OutputStream out, int capacity) {
+		this(out, capacity, null);
+	}
+
+	/**
+	 * @param capacity largest frame
+	 * @param stats gets each write, or null
+	 */
+	public LatestFrameWriter(OutputStream out, int capacity, LinkStats stats) {
+		this.out = out;
+		this.stats = stats;
+		pending = new byte[capacity];
+		writing = new byte[capacity];
+	}
+
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				writeFrames();
+			}
+		}, NAME);
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the writer thread, a frame not yet written is dropped. Does not
+	 * wait for a write in progress.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		thread = null;
+		if (t != null) {
+			t.interrupt();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Copies len bytes of frame from offset into the mailbox. The caller may
+	 * reuse frame when this returns.
+	 * @return false if an unsent frame was replaced
+	 * @throws IllegalArgumentException if len is larger than the capacity
+	 */
+	public synchronized boolean offer(byte[] frame, int offset, int len) {
+		if (len > pending.length) {
+			throw new IllegalArgumentException("frame of " + len + " bytes, capacity " + pending.length);
+		}
+		boolean replaced = pendingLength >= 0;
+		System.arraycopy(frame, offset, pending, 0, len);
+		pendingLength = len;
+		offeredCount++;
+		if (replaced) {
+			droppedCount++;
+		} else {
+			notifyAll();
+		}
+		return !replaced;
+	}
+
+	private void writeFrames() {
+		try {
+			while (thread == Thread.currentThread()) {
+				int len;
+				synchronized (this) {
+					while (pendingLength < 0 && thread == Thread.currentThread()) {
+						wait();
+					}
+					if (pendingLength < 0) {
+						break;
+					}
+					len = pendingLength;
+					System.arraycopy(pending, 0, writing, 0, len);
+					pendingLength = -1;
+				}
+				long start = System.nanoTime();
+				if (stats != null) {
+					stats.frameWriting(writing, 0, len, start);
+				}
+				synchronized (out) {
+					out.write(writing, 0, len);
+					out.flush();
+				}
+				if (stats != null) {
+					stats.frameWritten(len, start, System.nanoTime());
+				}
+				writtenCount++;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} catch (IOException e) {
+			// the reader of the link sees the broken connection too
+			failure = e;
+		}
+	}
+
+	/**
+	 * @return the exception that stopped the writer thread, or null
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return number of frames given to offer()
+	 */
+	public long getOfferedCount() {
+		return offeredCount;
+	}
+
+	/**
+	 * @return number of frames written to the stream
+	 */
+	public long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * @return number of frames replaced by a newer one before they were written
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency and throughput of the link to esc-control, for one connection.
+ * <p>
+ * The writing threads report each write with frameWriting() and
+ * frameWritten(), giving the time each motor frame sequence number was sent,
+ * the time blocked in the stream and the bytes and frames per second. The reading thread reports
+ * the sequence number echoed in each telemetry frame with ackReceived(),
+ * giving the round trip time. Rates are those of the last complete second,
+ * times are from the last complete window of WINDOW_NS, or the current one
+ * until the first is complete.
+ * <p>
+ * A motor frame is acknowledged when a telemetry frame echoes its sequence
+ * number. esc-control answers the latest frame it has, so a frame replaced
+ * before the answer was sent, as well as a lost one, is unacknowledged. A
+ * frame not acknowledged within ACK_TIMEOUT_NS or before its sequence number
+ * is reused counts as lost. Nothing is allocated while recording.
+ * @author dag
+ *
+ */
+public class LinkStats {
+	public static final long WINDOW_NS = 10000000000L;
+	public static final long RATE_WINDOW_NS = 1000000000L;
+	public static final long ACK_TIMEOUT_NS = 1000000000L;
+	private final Window rtt = new Window();
+	private final Window writeBlocking = new Window();
+	// nanoTime when each sequence number was sent, 0 when acknowledged or expired
+	private final AtomicLongArray sentAt = new AtomicLongArray(256);
+	private volatile long framesWritten;
+	private volatile long bytesWritten;
+	private volatile long bytesRead;
+	private volatile long acked;
+	private final AtomicLong lost = new AtomicLong(); // counted by both threads
+	private volatile double bytesPerSecond;
+	private volatile double framesPerSecond;
+	private volatile double bytesReadPerSecond;
+	private long rateStart;
+	private long rateFrames;
+	private long rateBytes;
+	private long readRateStart;
+	private long readRateBytes;
+
+	/**
+	 * Histograms of the current and the last complete window, in us.
+	 */
+	static class Window {
+		private Histogram current = new Histogram();
+		private volatile Histogram last;
+		private Histogram spare = new Histogram();
+		private long start;
+
+		void record(long us, long now) {
+			if (start == 0) {
+				start = now;
+			} else if (now - start >= WINDOW_NS) {
+				Histogram done = current;
+				current = spare;
+				spare = last != null ? last : new Histogram();
+				last = done;
+				current.clear();
+				start = now;
+			}
+			current.record(us);
+		}
+
+		Histogram get() {
+			Histogram h = last;
+			return h != null ? h : current;
+		}
+	}
+
+	/**
+	 * Records that a write of len bytes from frame starts now, before the
+	 * answer can arrive. Called by the writing threads.
+	 */
+	public void frameWriting(byte[] frame, int offset, int len, long now) {
+		if (len > 1 && (frame[offset] & 0xff) == MotorFrameEncoder.SYNC) {
+			int seq = frame[offset + 1] & 0xff;
+			if (sentAt.getAndSet(seq, now) != 0) {
+				lost.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Records a write of len bytes, blocked in the stream from start to end,
+	 * from System.nanoTime(). Called by the writing threads after
+	 * frameWriting().
+	 */
+	public synchronized void frameWritten(int len, long start, long end) {
+		writeBlocking.record((end - start) / 1000, end);
+		framesWritten++;
+		bytesWritten += len;
+		rateFrames++;
+		rateBytes += len;
+		if (rateStart == 0) {
+			rateStart = end;
+		} else if (end - rateStart >= RATE_WINDOW_NS) {
+			double seconds = (end - rateStart) / 1e9;
+			framesPerSecond = rateFrames / seconds;
+			bytesPerSecond = rateBytes / seconds;
+			rateFrames = 0;
+			rateBytes = 0;
+			rateStart = end;
+		}
+	}
+
+	/**
+	 * Records len bytes read at time now. Called by the reading thread.
+	 */
+	public void bytesRead(int len, long now) {
+		bytesRead += len;
+		readRateBytes += len;
+		if (readRateStart == 0) {
+			readRateStart = now;
+		} else if (now - readRateStart >= RATE_WINDOW_NS) {
+			bytesReadPerSecond = readRateBytes / ((now - readRateStart) / 1e9);
+			readRateBytes = 0;
+			readRateStart = now;
+		}
+	}
+
+	/**
+	 * Records a telemetry frame echoing seq, received at time now. Repeated
+	 * echoes of an acknowledged frame are ignored. Called by the reading thread.
+	 */
+	public void ackReceived(int seq, long now) {
+		long sent = sentAt.getAndSet(seq & 0xff, 0);
+		if (sent == 0) {
+			return;
+		}
+		if (now - sent > ACK_TIMEOUT_NS) {
+			lost.incrementAndGet();
+			return;
+		}
+		rtt.record((now - sent) / 1000, now);
+		acked++;
+		expire(now);
+	}
+
+	/**
+	 * Counts frames waiting longer than ACK_TIMEOUT_NS as lost.
+	 */
+	private void expire(long now) {
+		for (int i = 0; i < sentAt.length(); i++) {
+			long sent = sentAt.get(i);
+			if (sent != 0 && now - sent > ACK_TIMEOUT_NS && sentAt.compareAndSet(i, sent, 0)) {
+				lost.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return round trip times of motor frames in us
+	 */
+	public Histogram getRoundTrip() {
+		return rtt.get();
+	}
+
+	/**
+	 * @return times blocked writing to the stream in us
+	 */
+	public Histogram getWriteBlocking() {
+		return writeBlocking.get();
+	}
+
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public double getFramesPerSecond() {
+		return framesPerSecond;
+	}
+
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	public double getBytesReadPerSecond() {
+		return bytesReadPerSecond;
+	}
+
+	public long getAckedCount() {
+		return acked;
+	}
+
+	/**
+	 * @return number of motor frames not acknowledged in time
+	 */
+	public long getLostCount() {
+		expire(System.nanoTime());
+		return lost.get();
+	}
+
+	/**
+	 * @return fraction 0-1 of the settled motor frames that were not acknowledged
+	 */
+	public double getAckLossRate() {
+		long l = getLostCount();
+		long a = acked;
+		return a + l == 0 ? 0 : (double) l / (a + l);
+	}
+}
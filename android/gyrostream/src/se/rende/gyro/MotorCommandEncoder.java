@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Encodes the motor power command "p&lt;m0&gt; &lt;m1&gt; &lt;m2&gt; &lt;m3&gt;\r" for
+ * esc-control straight into a reusable byte buffer, so that the control loop
+ * allocates nothing per command.
+ * <p>
+ * Not thread safe, the buffer is overwritten by the next encode().
+ * @author dag
+ *
+ */
+public class MotorCommandEncoder {
+	// "p" + n * "-32768" + (n - 1) * " " + "\r"
+	private final byte[] buffer = new byte[1 + MotorMixer.MAX_MOTORS * 7 + 1];
+
+	/**
+	 * Encodes all powers of the array.
+	 * @see #encode(double[], int)
+	 */
+	public int encode(double[] power) {
+		return encode(power, power.length);
+	}
+
+	/**
+	 * Encodes the powers, truncated to int as the command has always done.
+	 * @param power motor powers, 0-255 for esc-control
+	 * @param motors number of powers to encode, at most MotorMixer.MAX_MOTORS
+	 * @return number of bytes of the command in getBuffer()
+	 */
+	public int encode(double[] power, int motors) {
+		int length = 0;
+		buffer[length++] = 'p';
+		for (int i = 0; i < motors; i++) {
+			if (i > 0) {
+				buffer[length++] = ' ';
+			}
+			length = putInt(Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) power[i])), length);
+		}
+		buffer[length++] = '\r';
+		return length;
+	}
+
+	/**
+	 * Writes v in decimal at offset and returns the offset after it.
+	 */
+	private int putInt(int v, int offset) {
+		if (v < 0) {
+			buffer[offset++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (int rest = v / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int end = offset + digits;
+		for (int i = end - 1; i >= offset; i--) {
+			buffer[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return end;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+}
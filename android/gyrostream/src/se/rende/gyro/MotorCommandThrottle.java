@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides which motor commands to send. A command goes out at once when a
+ * power has changed by at least the deadband, as esc-control would see it
+ * after truncating to 0-255. An unchanged command is only repeated as a
+ * heartbeat, often enough to keep the esc-control watchdog from turning the
+ * motors off (no command in MAX_TICKS_BETWEEN_COMMANDS, 2s).
+ * <p>
+ * shouldSend() is for one thread, invalidate() may be called from any.
+ * @author dag
+ *
+ */
+public class MotorCommandThrottle {
+	private final int[] lastSent = new int[MotorMixer.MAX_MOTORS];
+	private int lastMotors;
+	private long lastSendTime;
+	// set by invalidate() on any thread, taken by shouldSend() in one step so none is lost
+	private final AtomicBoolean invalid = new AtomicBoolean(true);
+	private volatile long sentCount;
+	private volatile long suppressedCount;
+
+	/**
+	 * Makes the next shouldSend() return true, as when the motors may have
+	 * been set by another path.
+	 */
+	public void invalidate() {
+		invalid.set(true);
+	}
+
+	/**
+	 * @param power motor powers about to be sent
+	 * @param motors number of powers sent
+	 * @param now System.nanoTime()
+	 * @param deadband smallest change in a power worth sending, 1 for any
+	 * @param heartbeat longest time in ns between sends
+	 * @return true if the command should be sent, it is then taken as sent
+	 */
+	public boolean shouldSend(double[] power, int motors, long now, int deadband, long heartbeat) {
+		boolean send = invalid.getAndSet(false) || motors != lastMotors || now - lastSendTime >= heartbeat;
+		for (int i = 0; i < motors && !send; i++) {
+			send = Math.abs(quantize(power[i]) - lastSent[i]) >= deadband;
+		}
+		if (!send) {
+			suppressedCount++;
+			return false;
+		}
+		for (int i = 0; i < motors; i++) {
+			lastSent[i] = quantize(power[i]);
+		}
+		lastMotors = motors;
+		lastSendTime = now;
+		sentCount++;
+		return true;
+	}
+
+	/**
+	 * @return power as the motor encoders send it
+	 */
+	private static int quantize(double power) {
+		return Math.max(0, Math.min(255, (int) power));
+	}
+
+	/**
+	 * @return number of commands passed by shouldSend()
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * @return number of commands held back by shouldSend()
+	 */
+	public long getSuppressedCount() {
+		return suppressedCount;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Encodes motor powers as the binary frame esc-control decodes in its uart
+ * interrupt, see avr/esc-control/motorframe.h:
+ * <pre>
+ * 0xA5 seq m0 m1 m2 m3 crc
+ * </pre>
+ * seq counts frames, m0-m3 are powers 0-255 and crc is crc8 (polynomial
+ * 0x07, initial value 0) of seq and m0-m3. 7 bytes instead of up to 17 for
+ * the ascii command, and no number parsing on the avr. A frame has as many
+ * motors as esc-control is built with, MOTOR_COUNT.
+ * <p>
+ * Not thread safe, the buffer is overwritten by the next encode().
+ * @author dag
+ *
+ */
+public class MotorFrameEncoder {
+	public static final int SYNC = 0xA5;
+	private static final byte[] CRC_TABLE = new byte[256];
+	private final byte[] buffer = new byte[3 + MotorMixer.MAX_MOTORS];
+	private int seq;
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+			}
+			CRC_TABLE[i] = (byte) crc;
+		}
+	}
+
+	/**
+	 * @return crc updated with the low 8 bits of data
+	 */
+	public static int crc8(int crc, int data) {
+		return CRC_TABLE[(crc ^ data) & 0xff] & 0xff;
+	}
+
+	/**
+	 * Encodes all powers of the array.
+	 * @see #encode(double[], int)
+	 */
+	public int encode(double[] power) {
+		return encode(power, power.length);
+	}
+
+	/**
+	 * Encodes the powers, truncated to int and clamped to 0-255, with the
+	 * next sequence number.
+	 * @param power motor powers
+	 * @param motors number of powers to encode, at most MotorMixer.MAX_MOTORS
+	 * @return number of bytes of the frame in getBuffer()
+	 */
+	public int encode(double[] power, int motors) {
+		buffer[0] = (byte) SYNC;
+		buffer[1] = (byte) seq;
+		int crc = crc8(0, seq);
+		for (int i = 0; i < motors; i++) {
+			int value = Math.max(0, Math.min(255, (int) power[i]));
+			buffer[2 + i] = (byte) value;
+			crc = crc8(crc, value);
+		}
+		buffer[2 + motors] = (byte) crc;
+		seq = (seq + 1) & 0xff;
+		return 3 + motors;
+	}
+
+	/**
+	 * @return sequence number of the last frame encoded
+	 */
+	public int getSeq() {
+		return (seq - 1) & 0xff;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * The connection to esc-control that FlightService sends motor frames on and
+ * gets telemetry from. Implemented by BluetoothService for the RFCOMM link
+ * and by StreamMotorLink for tcp, a pty or serial device and an in-memory
+ * loopback to an EscEmulator.
+ * @author dag
+ *
+ */
+public interface MotorLink {
+
+	/**
+	 * @return true if frames written now can reach esc-control
+	 */
+	boolean isConnected();
+
+	/**
+	 * Hands a frame to the writer thread and returns at once. A frame not yet
+	 * written when the next one comes is dropped. Ignored if not connected.
+	 */
+	void write(byte[] frame, int offset, int len);
+
+	/**
+	 * @param listener gets telemetry and text from esc-control on the reading thread
+	 */
+	void setTelemetryListener(TelemetryDecoder.Listener listener);
+
+	/**
+	 * @return latency and throughput of the current connection, or null if
+	 *         not connected
+	 */
+	LinkStats getLinkStats();
+
+	/**
+	 * @return number of frames from write() written in this connection
+	 */
+	long getWrittenFrameCount();
+
+	/**
+	 * @return number of frames from write() replaced by a newer one before
+	 *         they were written in this connection
+	 */
+	long getDroppedFrameCount();
+
+	/**
+	 * @return number of valid telemetry frames read in this connection
+	 */
+	long getTelemetryFrameCount();
+
+	/**
+	 * @return number of bytes dropped as bad telemetry in this connection
+	 */
+	long getTelemetryErrorCount();
+
+	/**
+	 * Closes the connection.
+	 */
+	void close();
+}
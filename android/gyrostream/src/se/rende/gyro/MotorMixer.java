@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Mixes thrust and pitch, roll and yaw forces into motor powers with a
+ * coefficient table per frame geometry.
+ * <p>
+ * Motors are numbered as esc-control drives them. A positive pitch force
+ * speeds up the rear motors, a positive roll force the left motors and a
+ * positive yaw force every other motor around the frame, those turning the
+ * same way as quad X motors 1 and 2. Pitch and roll
+ * coefficients are the motor position scaled so that the largest is 1, as
+ * with the original quad X mix.
+ * <pre>
+ * quadx      quadplus    hexa         octo
+ *  3   2        3          5  0        7  0
+ *   \ /       1 + 2      4  +  1     6      1
+ *   / \         0          3  2      5      2
+ *  1   0                               4  3
+ * </pre>
+ * hexa and octo are X frames, motor 0 is right of front and the numbers go
+ * clockwise.
+ * @author dag
+ *
+ */
+public class MotorMixer {
+	public static final int MAX_MOTORS = 8;
+	private static final int UP = 0;
+	private static final int PITCH = 1;
+	private static final int ROLL = 2;
+	private static final int YAW = 3;
+	private static final double T = 0.41421356; // tan(22.5 degrees), octo arms nearest the axes
+
+	public static final MotorMixer QUAD_X = new MotorMixer("quadx", new double[][] {
+			// up, pitch, roll, yaw
+			{1, 1, -1, -1},
+			{1, 1, 1, 1},
+			{1, -1, -1, 1},
+			{1, -1, 1, -1}});
+	public static final MotorMixer QUAD_PLUS = new MotorMixer("quadplus", new double[][] {
+			{1, 1, 0, -1},
+			{1, 0, 1, 1},
+			{1, 0, -1, 1},
+			{1, -1, 0, -1}});
+	public static final MotorMixer HEXA = new MotorMixer("hexa", new double[][] {
+			{1, -1, -0.5, 1},
+			{1, 0, -1, -1},
+			{1, 1, -0.5, 1},
+			{1, 1, 0.5, -1},
+			{1, 0, 1, 1},
+			{1, -1, 0.5, -1}});
+	public static final MotorMixer OCTO = new MotorMixer("octo", new double[][] {
+			{1, -1, -T, 1},
+			{1, -T, -1, -1},
+			{1, T, -1, 1},
+			{1, 1, -T, -1},
+			{1, 1, T, 1},
+			{1, T, 1, -1},
+			{1, -T, 1, 1},
+			{1, -1, T, -1}});
+
+	private final String name;
+	private final int motorCount;
+	private final double[] table; // motorCount rows of up, pitch, roll, yaw
+
+	private MotorMixer(String name, double[][] rows) {
+		this.name = name;
+		motorCount = rows.length;
+		table = new double[motorCount * 4];
+		for (int motor = 0; motor < motorCount; motor++) {
+			System.arraycopy(rows[motor], 0, table, motor * 4, 4);
+		}
+	}
+
+	/**
+	 * @return the mixer for name quadx, quadplus, hexa or octo, or null
+	 */
+	public static MotorMixer forName(String name) {
+		for (MotorMixer mixer : new MotorMixer[] {QUAD_X, QUAD_PLUS, HEXA, OCTO}) {
+			if (mixer.name.equals(name)) {
+				return mixer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets power[0] to power[getMotorCount() - 1] from thrust up and the
+	 * forces. Thrust is first limited to min - max. If a motor then falls
+	 * outside min - max, the pitch, roll and yaw parts of all motors are
+	 * scaled down by the same factor until it fits, so the craft keeps its
+	 * thrust and the direction of the correction instead of losing the
+	 * clipped motors' share of it.
+	 * @return the factor the forces were scaled with, 1 if not desaturated
+	 */
+	public double mix(double up, double pitch, double roll, double yaw,
+			double min, double max, double[] power) {
+		up = Math.max(min, Math.min(max, up));
+		double scale = 1;
+		for (int motor = 0, i = 0; motor < motorCount; motor++, i += 4) {
+			double force = table[i + PITCH] * pitch + table[i + ROLL] * roll + table[i + YAW] * yaw;
+			double thrust = table[i + UP] * up;
+			power[motor] = force;
+			if (thrust + force * scale > max) {
+				scale = (max - thrust) / force;
+			} else if (thrust + force * scale < min) {
+				scale = (min - thrust) / force;
+			}
+		}
+		for (int motor = 0, i = 0; motor < motorCount; motor++, i += 4) {
+			power[motor] = table[i + UP] * up + power[motor] * scale;
+		}
+		return scale;
+	}
+
+	public int getMotorCount() {
+		return motorCount;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -61,6 +61,28 @@ public class NexterUtil {
 		}
 	}
 
+	/**
+	 * Returns sin(pitch) of the attitude quaternion q, which is close to the
+	 * pitch angle in rad for small angles (1% off at 14 degrees). Needs no
+	 * trigonometry and has no gimbal lock.
+	 * @param q quaternion q0 (scalar part), q1, q2, q3
+	 * @return sin of the angle FlightAngle.getAngles() reports as pitch
+	 */
+	public static double tiltPitch(double[] q) {
+		return 2 * (q[0] * q[2] - q[1] * q[3]);
+	}
+
+	/**
+	 * Returns sin(roll) * cos(pitch) of the attitude quaternion q, which is
+	 * close to the roll angle in rad for small angles (1% off at 14 degrees
+	 * roll when level in pitch). Needs no trigonometry and has no gimbal lock.
+	 * @param q quaternion q0 (scalar part), q1, q2, q3
+	 * @return roll component of the gravity direction in the body frame
+	 */
+	public static double tiltRoll(double[] q) {
+		return 2 * (q[0] * q[1] + q[2] * q[3]);
+	}
+
 	public static double calculateMedian(double[] fs) {
 		Arrays.sort(fs);
 		return fs[fs.length / 2];
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Immutable gains of a PID controller.
+ * @author dag
+ *
+ */
+public final class PIDGains {
+	final double p;
+	final double i;
+	final double d;
+	final double windupGuard; // largest integrated error
+
+	public PIDGains(double p, double i, double d, double windupGuard) {
+		this.p = p;
+		this.i = i;
+		this.d = d;
+		this.windupGuard = windupGuard;
+	}
+
+	@Override
+	public String toString() {
+		return "PIDGains(" + p + ", " + i + ", " + d + ", " + windupGuard + ")";
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * State of one PID controller. The gains come as an immutable PIDGains
+ * with each update, so a change of gains applies whole.
+ */
+public class PIDdata {
+	static final double D_FILTER_TIME = 0.005; // s, 32Hz corner of the updateOnMeasurement() derivative
+	double prevError = 0;
+	// AKA experiments with PID
+	// double previousPIDTime;
+	boolean firstPass = true;
+	double integratedError = 0;
+	double iState = 0;
+	public double dState; // previous measurement, for the derivative in updateOnMeasurement()
+	double dRate; // low pass filtered derivative of the measurement
+
+	/**
+	 * Forgets the integral and previous values.
+	 */
+	void reset() {
+		integratedError = 0;
+		prevError = 0;
+		dState = 0;
+		dRate = 0;
+		firstPass = true;
+	}
+
+	/**
+	 * After http://en.wikipedia.org/wiki/PID_controller, with the
+	 * derivative of the error.
+	 */
+	double update(PIDGains gains, double targetPosition, double currentPosition, double dt) {
+		double error = targetPosition - currentPosition;
+		integrate(gains, error, dt);
+		double derivative = (error - prevError) / dt;
+		prevError = error;
+		return (gains.p * error) + (gains.i * integratedError) + (gains.d * derivative);
+	}
+
+	/**
+	 * PID with the derivative taken from the measured rate of change of
+	 * the position, such as a gyro rate for an angle. Setpoint steps then
+	 * give no derivative kick, and there is no differencing noise.
+	 */
+	double update(PIDGains gains, double targetPosition, double currentPosition, double currentRate, double dt) {
+		double error = targetPosition - currentPosition;
+		integrate(gains, error, dt);
+		return (gains.p * error) + (gains.i * integratedError) - (gains.d * currentRate);
+	}
+
+	/**
+	 * PID with the derivative of the measurement instead of the error,
+	 * for a loop where no measured rate of change is at hand. The
+	 * derivative is low pass filtered with time constant D_FILTER_TIME,
+	 * weighted by dt so that uneven sample periods do not add noise.
+	 */
+	double updateOnMeasurement(PIDGains gains, double targetPosition, double currentPosition, double dt) {
+		if (!firstPass) {
+			dRate += (dt / (D_FILTER_TIME + dt)) * ((currentPosition - dState) / dt - dRate);
+		}
+		dState = currentPosition;
+		firstPass = false;
+		return update(gains, targetPosition, currentPosition, dRate, dt);
+	}
+
+	private void integrate(PIDGains gains, double error, double dt) {
+		integratedError += error * dt;
+		if (integratedError > gains.windupGuard) {
+			integratedError = gains.windupGuard;
+		} else if (integratedError < -gains.windupGuard) {
+			integratedError = -gains.windupGuard;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PIDdata(" + integratedError + ", " + prevError + ")";
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Feeds gyro and accelerometer samples, each at its own rate, to a
+ * FlightAngle in timestamp order.
+ * <p>
+ * Every gyro sample predicts the attitude up to its timestamp. Accelerometer
+ * samples are buffered until the gyro has passed their timestamp. The
+ * prediction is then split at the accelerometer timestamp and the correction
+ * applied there, so each correction meets the attitude of the moment it was
+ * measured. Samples that arrive after the gyro has passed them are applied at
+ * once if not older than maxAccelAge, else dropped.
+ * <p>
+ * Not thread safe, call from one thread. Nothing is allocated per sample.
+ * @author dag
+ *
+ */
+public class SensorFusion {
+	private static final double NS2S = 1.0 / 1000000000.0;
+	private static final int ACCEL_BUFFER_SIZE = 8; // power of 2
+	private volatile FlightAngle flightAngle;
+	private long maxAccelAge = 20000000; // ns
+	private long stateTime; // timestamp the attitude is predicted to, 0 before first gyro sample
+	private long lastCorrectionTime;
+	private final long[] accelTime = new long[ACCEL_BUFFER_SIZE];
+	private final double[] accelValues = new double[ACCEL_BUFFER_SIZE * 3];
+	private int accelHead; // next to apply
+	private int accelTail; // next to fill
+	private long lateAccelCount;
+	private long droppedAccelCount;
+	private long correctionCount;
+
+	public SensorFusion(FlightAngle flightAngle) {
+		this.flightAngle = flightAngle;
+	}
+
+	/**
+	 * Starts over with no samples and the estimator at init().
+	 */
+	public void init() {
+		flightAngle.init();
+		stateTime = 0;
+		lastCorrectionTime = 0;
+		accelHead = 0;
+		accelTail = 0;
+		lateAccelCount = 0;
+		droppedAccelCount = 0;
+		correctionCount = 0;
+	}
+
+	/**
+	 * Takes a gyro sample, predicts the attitude to its timestamp and applies
+	 * the accelerometer samples taken until then.
+	 * @param timestamp sensor timestamp in ns
+	 * @return seconds since previous gyro sample, 0 for the first one
+	 */
+	public double gyro(long timestamp, double rollRate, double pitchRate, double yawRate) {
+		FlightAngle flightAngle = this.flightAngle;
+		if (stateTime == 0) {
+			stateTime = timestamp;
+			applyLateAccel(flightAngle);
+			return 0;
+		}
+		double dT = (timestamp - stateTime) * NS2S;
+		// split the prediction at each accel sample taken since last gyro sample
+		while (accelHead != accelTail && accelTime[accelHead] <= timestamp) {
+			long t = accelTime[accelHead];
+			if (t > stateTime) {
+				flightAngle.predict(rollRate, pitchRate, yawRate, (t - stateTime) * NS2S);
+				stateTime = t;
+				applyAccel(flightAngle, t);
+			} else if (stateTime - t > maxAccelAge) {
+				accelHead = (accelHead + 1) & (ACCEL_BUFFER_SIZE - 1);
+				droppedAccelCount++;
+			} else {
+				lateAccelCount++;
+				applyAccel(flightAngle, t);
+			}
+		}
+		if (timestamp > stateTime) {
+			flightAngle.predict(rollRate, pitchRate, yawRate, (timestamp - stateTime) * NS2S);
+			stateTime = timestamp;
+		}
+		return dT;
+	}
+
+	/**
+	 * Takes an accelerometer sample. It is applied when the gyro has passed its timestamp.
+	 * @param timestamp sensor timestamp in ns
+	 */
+	public void accel(long timestamp, double longitudinalAccel, double lateralAccel, double verticalAccel) {
+		if (((accelTail + 1) & (ACCEL_BUFFER_SIZE - 1)) == accelHead) {
+			// full, the gyro has stopped - drop the oldest
+			accelHead = (accelHead + 1) & (ACCEL_BUFFER_SIZE - 1);
+			droppedAccelCount++;
+		}
+		accelTime[accelTail] = timestamp;
+		accelValues[accelTail * 3] = longitudinalAccel;
+		accelValues[accelTail * 3 + 1] = lateralAccel;
+		accelValues[accelTail * 3 + 2] = verticalAccel;
+		accelTail = (accelTail + 1) & (ACCEL_BUFFER_SIZE - 1);
+		if (stateTime != 0 && timestamp <= stateTime) {
+			applyLateAccel(this.flightAngle);
+		}
+	}
+
+	/**
+	 * Applies buffered samples the gyro has already passed, or drops them if too old.
+	 */
+	private void applyLateAccel(FlightAngle flightAngle) {
+		while (accelHead != accelTail && accelTime[accelHead] <= stateTime) {
+			if (stateTime - accelTime[accelHead] > maxAccelAge) {
+				accelHead = (accelHead + 1) & (ACCEL_BUFFER_SIZE - 1);
+				droppedAccelCount++;
+			} else {
+				lateAccelCount++;
+				applyAccel(flightAngle, accelTime[accelHead]);
+			}
+		}
+	}
+
+	/**
+	 * Corrects with the sample at accelHead and removes it from the buffer.
+	 */
+	private void applyAccel(FlightAngle flightAngle, long t) {
+		int i = accelHead * 3;
+		double dT = lastCorrectionTime == 0 || t <= lastCorrectionTime ? 0 : (t - lastCorrectionTime) * NS2S;
+		flightAngle.correct(accelValues[i], accelValues[i + 1], accelValues[i + 2], dT);
+		lastCorrectionTime = Math.max(lastCorrectionTime, t);
+		accelHead = (accelHead + 1) & (ACCEL_BUFFER_SIZE - 1);
+		correctionCount++;
+	}
+
+	public FlightAngle getFlightAngle() {
+		return flightAngle;
+	}
+
+	/**
+	 * Replaces the estimator, taking effect at the next sample.
+	 */
+	public void setFlightAngle(FlightAngle flightAngle) {
+		this.flightAngle = flightAngle;
+	}
+
+	/**
+	 * @param maxAccelAge how old in ns an accel sample the gyro has passed may be and still be used
+	 */
+	public void setMaxAccelAge(long maxAccelAge) {
+		this.maxAccelAge = maxAccelAge;
+	}
+
+	/**
+	 * @return number of accel samples applied after the gyro had passed them
+	 */
+	public long getLateAccelCount() {
+		return lateAccelCount;
+	}
+
+	/**
+	 * @return number of accel samples dropped for being too old or for buffer overflow
+	 */
+	public long getDroppedAccelCount() {
+		return droppedAccelCount;
+	}
+
+	/**
+	 * @return number of accel corrections applied
+	 */
+	public long getCorrectionCount() {
+		return correctionCount;
+	}
+}
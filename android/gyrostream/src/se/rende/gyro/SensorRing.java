@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer single consumer ring of sensor samples, from the sensor
+ * callback thread to the control thread.
+ * <p>
+ * Samples are copied into preallocated primitive arrays, so nothing is
+ * allocated or locked on either side. When the ring is full the new sample is
+ * dropped and counted as an overrun, the producer never waits.
+ * @author dag
+ *
+ */
+public class SensorRing {
+	public static final int AXES = 3;
+	private final int mask;
+	private final int[] type;
+	private final long[] timestamp;
+	private final float[] values;
+	private volatile int head; // next to read
+	private volatile int tail; // next to write
+	private volatile Thread consumer;
+	private volatile long overrunCount;
+	private volatile int maxDepth;
+
+	/**
+	 * A sample taken from the ring, reused by the consumer.
+	 */
+	public static class Sample {
+		public int type;
+		public long timestamp;
+		public final float[] values = new float[AXES];
+	}
+
+	/**
+	 * @param capacity number of slots, a power of 2, holds one sample less
+	 */
+	public SensorRing(int capacity) {
+		if (capacity < 2 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+		}
+		mask = capacity - 1;
+		type = new int[capacity];
+		timestamp = new long[capacity];
+		values = new float[capacity * AXES];
+	}
+
+	/**
+	 * Empties the ring and zeroes the counters. Only when neither side runs.
+	 */
+	public void clear() {
+		head = 0;
+		tail = 0;
+		overrunCount = 0;
+		maxDepth = 0;
+	}
+
+	/**
+	 * Sets the thread to wake when a sample is added.
+	 */
+	public void setConsumer(Thread consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Adds a sample. Call from the producer thread only.
+	 * @return false if the ring was full and the sample dropped
+	 */
+	public boolean offer(int sensorType, long sampleTimestamp, float[] sampleValues) {
+		int t = tail;
+		int next = (t + 1) & mask;
+		if (next == head) {
+			overrunCount++;
+			return false;
+		}
+		type[t] = sensorType;
+		timestamp[t] = sampleTimestamp;
+		int n = Math.min(AXES, sampleValues.length);
+		for (int axis = 0; axis < n; axis++) {
+			values[t * AXES + axis] = sampleValues[axis];
+		}
+		tail = next;
+		int depth = (next - head) & mask;
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+		Thread c = consumer;
+		if (c != null) {
+			LockSupport.unpark(c);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the oldest sample into sample. Call from the consumer thread only.
+	 * @return false if the ring is empty
+	 */
+	public boolean poll(Sample sample) {
+		int h = head;
+		if (h == tail) {
+			return false;
+		}
+		sample.type = type[h];
+		sample.timestamp = timestamp[h];
+		for (int axis = 0; axis < AXES; axis++) {
+			sample.values[axis] = values[h * AXES + axis];
+		}
+		head = (h + 1) & mask;
+		return true;
+	}
+
+	/**
+	 * Waits until a sample is available, nanos have passed, the thread is
+	 * interrupted or spuriously. Call from the consumer thread only.
+	 */
+	public void await(long nanos) {
+		if (head == tail) {
+			LockSupport.parkNanos(this, nanos);
+		}
+	}
+
+	/**
+	 * @return number of samples waiting
+	 */
+	public int getDepth() {
+		return (tail - head) & mask;
+	}
+
+	/**
+	 * @return largest number of samples waiting since clear()
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return number of samples dropped because the ring was full
+	 */
+	public long getOverrunCount() {
+		return overrunCount;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.Socket;
+
+/**
+ * MotorLink over an input and an output stream, for links other than
+ * bluetooth: a tcp socket, a pty or serial device, or an in-memory loopback
+ * to an EscEmulator. Frames are written by a LatestFrameWriter and a reader
+ * thread decodes telemetry, as BluetoothService does.
+ * <p>
+ * The link is connected from start() until the input ends or close().
+ * @author dag
+ *
+ */
+public class StreamMotorLink implements MotorLink {
+	private static final int MAX_FRAME = 64;
+	private final String name;
+	private final InputStream in;
+	private final OutputStream out;
+	private final Closeable resource;
+	private final LinkStats stats = new LinkStats();
+	private final LatestFrameWriter writer;
+	private final TelemetryDecoder decoder = new TelemetryDecoder();
+	private volatile TelemetryDecoder.Listener listener;
+	private volatile boolean connected;
+	private volatile IOException failure;
+	private Thread reader;
+
+	/**
+	 * @param name of the reader thread
+	 * @param resource closed by close() after the streams, or null
+	 */
+	public StreamMotorLink(String name, InputStream in, OutputStream out, Closeable resource) {
+		this.name = name;
+		this.in = in;
+		this.out = out;
+		this.resource = resource;
+		writer = new LatestFrameWriter(out, MAX_FRAME, stats);
+		decoder.setListener(new TelemetryDecoder.Listener() {
+			public void telemetryReceived(TelemetryDecoder.Telemetry telemetry) {
+				stats.ackReceived(telemetry.seq, telemetry.receiveTime);
+				TelemetryDecoder.Listener l = listener;
+				if (l != null) {
+					l.telemetryReceived(telemetry);
+				}
+			}
+
+			public void textReceived(byte[] line, int length) {
+				TelemetryDecoder.Listener l = listener;
+				if (l != null) {
+					l.textReceived(line, length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Connects to esc-control, or an emulator, served on a tcp port.
+	 * @return started link
+	 */
+	public static StreamMotorLink connect(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		StreamMotorLink link = new StreamMotorLink("tcp " + host + ":" + port,
+				socket.getInputStream(), socket.getOutputStream(), socket);
+		link.start();
+		return link;
+	}
+
+	/**
+	 * Opens a pty or serial device. It must already be in raw mode at the
+	 * right speed, for example with stty -F device 115200 raw -echo.
+	 * @return started link
+	 */
+	public static StreamMotorLink open(File device) throws IOException {
+		FileInputStream in = new FileInputStream(device);
+		FileOutputStream out;
+		try {
+			out = new FileOutputStream(device);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		StreamMotorLink link = new StreamMotorLink(device.getPath(), in, out, null);
+		link.start();
+		return link;
+	}
+
+	/**
+	 * Links in memory to emulator, which is started on its own thread with
+	 * streams for the other end.
+	 * @return started link
+	 */
+	public static StreamMotorLink loopback(EscEmulator emulator) throws IOException {
+		PipedInputStream toEsc = new PipedInputStream(4096);
+		PipedInputStream fromEsc = new PipedInputStream(4096);
+		emulator.start(toEsc, new PipedOutputStream(fromEsc));
+		StreamMotorLink link = new StreamMotorLink("loopback", fromEsc, new PipedOutputStream(toEsc), null);
+		link.start();
+		return link;
+	}
+
+	/**
+	 * Starts the reader and writer threads.
+	 */
+	public synchronized void start() {
+		if (reader != null) {
+			return;
+		}
+		connected = true;
+		writer.start();
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void read() {
+		byte[] buffer = new byte[1024];
+		try {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				if (n > 0) {
+					stats.bytesRead(n, System.nanoTime());
+					decoder.feed(buffer, 0, n);
+				}
+			}
+		} catch (IOException e) {
+			if (connected) {
+				failure = e;
+			}
+		}
+		connected = false;
+		writer.stop();
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return the exception that ended the connection, or null
+	 */
+	public IOException getFailure() {
+		IOException e = failure;
+		return e != null ? e : writer.getFailure();
+	}
+
+	public void write(byte[] frame, int offset, int len) {
+		if (connected) {
+			writer.offer(frame, offset, len);
+		}
+	}
+
+	public void setTelemetryListener(TelemetryDecoder.Listener listener) {
+		this.listener = listener;
+	}
+
+	public LinkStats getLinkStats() {
+		return connected ? stats : null;
+	}
+
+	public long getWrittenFrameCount() {
+		return writer.getWrittenCount();
+	}
+
+	public long getDroppedFrameCount() {
+		return writer.getDroppedCount();
+	}
+
+	public long getTelemetryFrameCount() {
+		return decoder.getFrameCount();
+	}
+
+	public long getTelemetryErrorCount() {
+		return decoder.getErrorCount();
+	}
+
+	public void close() {
+		connected = false;
+		writer.stop();
+		close(out);
+		close(in);
+		if (resource != null) {
+			close(resource);
+		}
+	}
+
+	private static void close(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+}
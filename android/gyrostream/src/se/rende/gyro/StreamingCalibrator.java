@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Finds the zero offsets of a three axis sensor while the craft stands still,
+ * in constant memory.
+ * <p>
+ * Each axis keeps a Welford running mean and variance and a P-square
+ * streaming median (Jain and Chlamtac 1985). Calibration is ready as soon as
+ * the standard deviation shows the craft is still and the standard error of
+ * the mean is below tolerance on all axes. A sample further from the median
+ * than motionThreshold, or a standard deviation above stillThreshold, means
+ * the craft moved and calibration starts over.
+ * <p>
+ * Not thread safe, call from the sensor thread. Nothing is allocated per
+ * sample.
+ * @author dag
+ *
+ */
+public class StreamingCalibrator {
+	private static final int AXES = 3;
+	private static final int MARKERS = 5;
+	private final int settleSamples; // samples thrown away after a start, while the sensor settles
+	private final int minSamples; // fewest samples to trust the variance on
+	private final double stillThreshold; // largest standard deviation of a still craft
+	private final double motionThreshold; // largest distance of one sample from the median
+	private final double tolerance; // required standard error of the mean
+
+	private int settleLeft;
+	private long n;
+	private final double[] mean = new double[AXES];
+	private final double[] m2 = new double[AXES]; // sum of squared differences from the mean
+	// P-square median markers per axis: heights, actual and desired positions
+	private final double[][] height = new double[AXES][MARKERS];
+	private final double[][] position = new double[AXES][MARKERS];
+	private final double[][] desired = new double[AXES][MARKERS];
+	private static final double[] DESIRED_INCREMENT = {0, 0.25, 0.5, 0.75, 1};
+	private boolean ready;
+	private int restartCount;
+
+	/**
+	 * @param settleSamples samples thrown away after a start
+	 * @param minSamples fewest samples before ready, at least 5
+	 * @param stillThreshold largest standard deviation of a still craft
+	 * @param motionThreshold largest distance of one sample from the median
+	 * @param tolerance required standard error of the mean
+	 */
+	public StreamingCalibrator(int settleSamples, int minSamples, double stillThreshold,
+			double motionThreshold, double tolerance) {
+		this.settleSamples = settleSamples;
+		this.minSamples = Math.max(minSamples, MARKERS);
+		this.stillThreshold = stillThreshold;
+		this.motionThreshold = motionThreshold;
+		this.tolerance = tolerance;
+		init();
+	}
+
+	/**
+	 * Starts over, including the settle samples.
+	 */
+	public void init() {
+		settleLeft = settleSamples;
+		restartCount = 0;
+		restart();
+	}
+
+	/**
+	 * Starts over without the settle samples, as when another sensor saw
+	 * motion.
+	 */
+	public void restart() {
+		n = 0;
+		for (int axis = 0; axis < AXES; axis++) {
+			mean[axis] = 0;
+			m2[axis] = 0;
+		}
+		ready = false;
+	}
+
+	/**
+	 * Adds a sample.
+	 * @param values at least three axis values
+	 * @return false if the sample showed motion and calibration started over
+	 */
+	public boolean add(float[] values) {
+		if (settleLeft > 0) {
+			settleLeft--;
+			return true;
+		}
+		if (n >= MARKERS) {
+			for (int axis = 0; axis < AXES; axis++) {
+				if (Math.abs(values[axis] - height[axis][2]) > motionThreshold) {
+					restartCount++;
+					restart();
+					return false;
+				}
+			}
+		}
+		n++;
+		for (int axis = 0; axis < AXES; axis++) {
+			double x = values[axis];
+			double delta = x - mean[axis];
+			mean[axis] += delta / n;
+			m2[axis] += delta * (x - mean[axis]);
+			addToMedian(axis, x);
+		}
+		if (n >= minSamples) {
+			boolean converged = true;
+			for (int axis = 0; axis < AXES; axis++) {
+				double variance = m2[axis] / (n - 1);
+				if (variance > stillThreshold * stillThreshold) {
+					restartCount++;
+					restart();
+					return false;
+				}
+				if (variance / n > tolerance * tolerance) {
+					converged = false;
+				}
+			}
+			ready = converged;
+		}
+		return true;
+	}
+
+	/**
+	 * P-square update of the median estimate of one axis with x, n already
+	 * counting x.
+	 */
+	private void addToMedian(int axis, double x) {
+		double[] q = height[axis];
+		double[] pos = position[axis];
+		double[] want = desired[axis];
+		if (n <= MARKERS) {
+			// the first five samples, kept sorted
+			int i = (int) n - 1;
+			while (i > 0 && q[i - 1] > x) {
+				q[i] = q[i - 1];
+				i--;
+			}
+			q[i] = x;
+			if (n == MARKERS) {
+				for (int j = 0; j < MARKERS; j++) {
+					pos[j] = j + 1;
+					want[j] = 1 + 4 * DESIRED_INCREMENT[j];
+				}
+			}
+			return;
+		}
+
+		// find the cell of x, widening the extremes
+		int k;
+		if (x < q[0]) {
+			q[0] = x;
+			k = 0;
+		} else if (x >= q[4]) {
+			q[4] = x;
+			k = 3;
+		} else {
+			k = 0;
+			while (x >= q[k + 1]) {
+				k++;
+			}
+		}
+		for (int j = k + 1; j < MARKERS; j++) {
+			pos[j]++;
+		}
+		for (int j = 0; j < MARKERS; j++) {
+			want[j] += DESIRED_INCREMENT[j];
+		}
+
+		// move the middle markers towards their desired positions
+		for (int j = 1; j < MARKERS - 1; j++) {
+			double d = want[j] - pos[j];
+			if ((d >= 1 && pos[j + 1] - pos[j] > 1) || (d <= -1 && pos[j - 1] - pos[j] < -1)) {
+				int s = d > 0 ? 1 : -1;
+				double parabolic = q[j] + s / (pos[j + 1] - pos[j - 1])
+						* ((pos[j] - pos[j - 1] + s) * (q[j + 1] - q[j]) / (pos[j + 1] - pos[j])
+						+ (pos[j + 1] - pos[j] - s) * (q[j] - q[j - 1]) / (pos[j] - pos[j - 1]));
+				if (q[j - 1] < parabolic && parabolic < q[j + 1]) {
+					q[j] = parabolic;
+				} else {
+					q[j] += s * (q[j + s] - q[j]) / (pos[j + s] - pos[j]);
+				}
+				pos[j] += s;
+			}
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return the median estimate of axis, the zero offset to use
+	 */
+	public double getMedian(int axis) {
+		if (n < MARKERS) {
+			return mean[axis];
+		}
+		return height[axis][2];
+	}
+
+	public double getMean(int axis) {
+		return mean[axis];
+	}
+
+	public double getStdDev(int axis) {
+		return n > 1 ? Math.sqrt(m2[axis] / (n - 1)) : 0;
+	}
+
+	/**
+	 * @return number of samples since the last start or restart
+	 */
+	public long getSampleCount() {
+		return n;
+	}
+
+	/**
+	 * @return number of restarts caused by motion since init()
+	 */
+	public int getRestartCount() {
+		return restartCount;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro;
+
+/**
+ * Splits the byte stream from esc-control into telemetry frames and text.
+ * <p>
+ * Received bytes are appended to a ring buffer, so a frame may arrive in any
+ * number of reads. A telemetry frame, see avr/esc-control/motorframe.h, is
+ * <pre>
+ * 0xA6 seq flags ticks m0 .. mn crc
+ * </pre>
+ * with the motor count in the high nibble of flags, and the unused flag bits
+ * 0. A frame with a bad crc is dropped one byte at a time, so a frame starting inside it is still
+ * found. Other bytes are text, passed on a line at a time.
+ * <p>
+ * A valid frame is decoded into the one Telemetry of the decoder and given
+ * to the listener, nothing is allocated per frame. Not thread safe, feed
+ * from one thread.
+ * @author dag
+ *
+ */
+public class TelemetryDecoder {
+	public static final int SYNC = 0xA6;
+	public static final int WATCHDOG = 0x01; // flag: motors stopped for lack of commands
+	public static final int BUTTONS = 0x02; // flag: manual power buttons enabled
+	private static final int UNUSED_FLAGS = 0x0c;
+	private static final int HEADER = 4; // sync, seq, flags, ticks
+	private static final int MAX_LENGTH = HEADER + MotorMixer.MAX_MOTORS + 1;
+	private static final int RING_SIZE = 256; // power of 2
+	private final byte[] ring = new byte[RING_SIZE];
+	private int head; // next to parse
+	private int tail; // next to fill
+	private final byte[] line = new byte[128];
+	private int lineLength;
+	private final Telemetry telemetry = new Telemetry();
+	private Listener listener;
+	private volatile long frameCount; // read by other threads for statistics
+	private volatile long errorCount;
+
+	/**
+	 * Receives decoded telemetry and text lines, on the thread calling feed().
+	 */
+	public interface Listener {
+		/**
+		 * @param telemetry valid until this returns, copy what is needed
+		 */
+		void telemetryReceived(Telemetry telemetry);
+
+		/**
+		 * @param line text without line end, valid until this returns
+		 */
+		void textReceived(byte[] line, int length);
+	}
+
+	/**
+	 * The contents of one telemetry frame.
+	 */
+	public static class Telemetry {
+		public int seq; // of the last motor frame esc-control took
+		public int flags; // WATCHDOG and BUTTONS
+		public int ticks; // 20ms ticks since last command
+		public int motorCount;
+		public final int[] speed = new int[MotorMixer.MAX_MOTORS];
+		public long receiveTime; // System.nanoTime() when decoded
+
+		public boolean isWatchdogStopped() {
+			return (flags & WATCHDOG) != 0;
+		}
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Appends received bytes and delivers all complete frames and lines.
+	 */
+	public void feed(byte[] data, int offset, int length) {
+		while (length > 0) {
+			// parse() leaves at most an incomplete frame, so there is always space
+			int space = RING_SIZE - 1 - available();
+			int n = Math.min(length, space);
+			for (int i = 0; i < n; i++) {
+				ring[tail] = data[offset + i];
+				tail = (tail + 1) & (RING_SIZE - 1);
+			}
+			offset += n;
+			length -= n;
+			parse();
+		}
+	}
+
+	private int available() {
+		return (tail - head) & (RING_SIZE - 1);
+	}
+
+	private int at(int i) {
+		return ring[(head + i) & (RING_SIZE - 1)] & 0xff;
+	}
+
+	private void parse() {
+		while (available() > 0) {
+			int b = at(0);
+			if (b != SYNC) {
+				text(b);
+				head = (head + 1) & (RING_SIZE - 1);
+				continue;
+			}
+			if (available() < 3) {
+				return;
+			}
+			int motorCount = at(2) >> 4;
+			int frameLength = HEADER + motorCount + 1;
+			if (motorCount == 0 || frameLength > MAX_LENGTH || (at(2) & UNUSED_FLAGS) != 0) {
+				// not a frame start
+				errorCount++;
+				head = (head + 1) & (RING_SIZE - 1);
+				continue;
+			}
+			if (available() < frameLength) {
+				return;
+			}
+			int crc = 0;
+			for (int i = 1; i < frameLength - 1; i++) {
+				crc = MotorFrameEncoder.crc8(crc, at(i));
+			}
+			if (crc != at(frameLength - 1)) {
+				errorCount++;
+				head = (head + 1) & (RING_SIZE - 1);
+				continue;
+			}
+			telemetry.seq = at(1);
+			telemetry.flags = at(2) & 0x0f;
+			telemetry.ticks = at(3);
+			telemetry.motorCount = motorCount;
+			for (int i = 0; i < motorCount; i++) {
+				telemetry.speed[i] = at(HEADER + i);
+			}
+			telemetry.receiveTime = System.nanoTime();
+			head = (head + frameLength) & (RING_SIZE - 1);
+			frameCount++;
+			if (listener != null) {
+				listener.telemetryReceived(telemetry);
+			}
+		}
+	}
+
+	private void text(int b) {
+		if (b == '\n' || b == '\r') {
+			if (lineLength > 0 && listener != null) {
+				listener.textReceived(line, lineLength);
+			}
+			lineLength = 0;
+		} else if (lineLength < line.length) {
+			line[lineLength++] = (byte) b;
+		}
+	}
+
+	/**
+	 * @return number of valid telemetry frames
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * @return number of bytes dropped as start of a bad frame
+	 */
+	public long getErrorCount() {
+		return errorCount;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * attitude.c
+ * Fixed point ARG attitude estimator, see attitude.h.
+ * Keep in step with FlightAngleARGFixed.java, every operation here has its
+ * twin there.
+ */
+
+#include "attitude.h"
+
+// rate of attitudeUpdate calls ki is tuned for
+#define KI_RATE 100
+// longer correction gaps count as 1s, keeps dt * KI_RATE in an int32_t
+#define MAX_CORRECT_DT ATTITUDE_ONE_Q24
+
+// integer square root, the largest r with r * r <= x
+static int64_t isqrt(int64_t x) {
+	int64_t r = 0;
+	int64_t bit = (int64_t) 1 << 62;
+	while (bit > x) {
+		bit >>= 2;
+	}
+	while (bit != 0) {
+		if (x >= r + bit) {
+			x -= r + bit;
+			r = (r >> 1) + bit;
+		} else {
+			r >>= 1;
+		}
+		bit >>= 2;
+	}
+	return r;
+}
+
+void attitudeInit(Attitude* a, int32_t kp, int32_t ki) {
+	a->kp = kp;
+	a->ki = ki;
+	a->q0 = ATTITUDE_ONE_Q30;
+	a->q1 = 0;
+	a->q2 = 0;
+	a->q3 = 0;
+	a->exInt = 0;
+	a->eyInt = 0;
+	a->ezInt = 0;
+}
+
+// sets e to the cross product of estimated and measured direction of
+// gravity Q30, returns 0 if the acceleration is zero
+static uint8_t error(Attitude* a, int32_t ax, int32_t ay, int32_t az, int32_t e[3]) {
+	int64_t norm = isqrt((int64_t) ax * ax + (int64_t) ay * ay + (int64_t) az * az);	// Q16
+	if (norm == 0) {
+		return 0;
+	}
+	// normalise the measurements to Q30
+	int64_t inv = ((int64_t) 1 << 46) / norm;
+	int32_t nx = (int32_t) ((ax * inv) >> 16);
+	int32_t ny = (int32_t) ((ay * inv) >> 16);
+	int32_t nz = (int32_t) ((az * inv) >> 16);
+
+	// estimated direction of gravity Q30
+	int32_t vx = (int32_t) (((int64_t) a->q1 * a->q3 - (int64_t) a->q0 * a->q2) >> 29);
+	int32_t vy = (int32_t) (((int64_t) a->q0 * a->q1 + (int64_t) a->q2 * a->q3) >> 29);
+	int32_t vz = (int32_t) (((int64_t) a->q0 * a->q0 - (int64_t) a->q1 * a->q1
+			- (int64_t) a->q2 * a->q2 + (int64_t) a->q3 * a->q3) >> 30);
+
+	e[0] = (int32_t) (((int64_t) vy * nz - (int64_t) vz * ny) >> 30);
+	e[1] = (int32_t) (((int64_t) vz * nx - (int64_t) vx * nz) >> 30);
+	e[2] = (int32_t) (((int64_t) vx * ny - (int64_t) vy * nx) >> 30);
+	return 1;
+}
+
+// rotates the attitude by the body rates g Q24 rad/s for dt Q24 s
+static void integrate(Attitude* a, int32_t gx, int32_t gy, int32_t gz, int32_t dt) {
+	int64_t s0 = -(int64_t) a->q1 * gx - (int64_t) a->q2 * gy - (int64_t) a->q3 * gz;	// Q54
+	int64_t s1 = (int64_t) a->q0 * gx + (int64_t) a->q2 * gz - (int64_t) a->q3 * gy;
+	int64_t s2 = (int64_t) a->q0 * gy - (int64_t) a->q1 * gz + (int64_t) a->q3 * gx;
+	int64_t s3 = (int64_t) a->q0 * gz + (int64_t) a->q1 * gy - (int64_t) a->q2 * gx;
+	// times half dt, Q30
+	a->q0 += (int32_t) (((s0 >> 24) * dt) >> 25);
+	a->q1 += (int32_t) (((s1 >> 24) * dt) >> 25);
+	a->q2 += (int32_t) (((s2 >> 24) * dt) >> 25);
+	a->q3 += (int32_t) (((s3 >> 24) * dt) >> 25);
+
+	// normalise quaternion
+	int64_t norm = isqrt((int64_t) a->q0 * a->q0 + (int64_t) a->q1 * a->q1
+			+ (int64_t) a->q2 * a->q2 + (int64_t) a->q3 * a->q3);	// Q30
+	int64_t inv = ((int64_t) 1 << 60) / norm;
+	a->q0 = (int32_t) ((a->q0 * inv) >> 30);
+	a->q1 = (int32_t) ((a->q1 * inv) >> 30);
+	a->q2 = (int32_t) ((a->q2 * inv) >> 30);
+	a->q3 = (int32_t) ((a->q3 * inv) >> 30);
+}
+
+void attitudeUpdate(Attitude* a, int32_t gx, int32_t gy, int32_t gz,
+		int32_t ax, int32_t ay, int32_t az, int32_t dt) {
+	int32_t e[3];
+	int32_t px = 0, py = 0, pz = 0;	// proportional feedback Q24
+	if (error(a, ax, ay, az, e)) {
+		// integral error scaled integral gain
+		a->exInt += (int32_t) (((int64_t) e[0] * a->ki) >> 26);
+		a->eyInt += (int32_t) (((int64_t) e[1] * a->ki) >> 26);
+		a->ezInt += (int32_t) (((int64_t) e[2] * a->ki) >> 26);
+		px = (int32_t) (((int64_t) a->kp * e[0]) >> 30);
+		py = (int32_t) (((int64_t) a->kp * e[1]) >> 30);
+		pz = (int32_t) (((int64_t) a->kp * e[2]) >> 30);
+	}
+	// adjusted gyroscope measurements Q24
+	integrate(a, (gx * 256) + px + (a->exInt >> 4), (gy * 256) + py + (a->eyInt >> 4),
+			(gz * 256) + pz + (a->ezInt >> 4), dt);
+}
+
+void attitudePredict(Attitude* a, int32_t gx, int32_t gy, int32_t gz, int32_t dt) {
+	integrate(a, (gx * 256) + (a->exInt >> 4), (gy * 256) + (a->eyInt >> 4),
+			(gz * 256) + (a->ezInt >> 4), dt);
+}
+
+void attitudeCorrect(Attitude* a, int32_t ax, int32_t ay, int32_t az, int32_t dt) {
+	int32_t e[3];
+	if (!error(a, ax, ay, az, e)) {
+		return;
+	}
+	if (dt > MAX_CORRECT_DT) {
+		dt = MAX_CORRECT_DT;
+	}
+	// integral error, scaled to the same gain per second as attitudeUpdate
+	int32_t steps = dt * KI_RATE;	// Q24
+	a->exInt += (int32_t) (((((int64_t) e[0] * a->ki) >> 26) * steps) >> 24);
+	a->eyInt += (int32_t) (((((int64_t) e[1] * a->ki) >> 26) * steps) >> 24);
+	a->ezInt += (int32_t) (((((int64_t) e[2] * a->ki) >> 26) * steps) >> 24);
+
+	// turn by the proportional feedback for the time since last correction
+	integrate(a, (int32_t) (((int64_t) a->kp * e[0]) >> 30),
+			(int32_t) (((int64_t) a->kp * e[1]) >> 30),
+			(int32_t) (((int64_t) a->kp * e[2]) >> 30), dt);
+}
@@ -0,0 +1,48 @@
+/*
+ * attitude.h
+ * Fixed point ARG attitude estimator, bit exact with FlightAngleARGFixed in
+ * android/gyrostream.
+ *
+ * Formats, Qn meaning n fraction bits:
+ * - gyro rates Q16 rad/s, at most 128 rad/s
+ * - accelerations Q16, any unit, at most 256
+ * - sample period dt Q24 s, at most 1s for attitudeUpdate and
+ *   attitudePredict, attitudeCorrect counts a longer time as 1s
+ * - quaternion Q30
+ * - gains Q24, integral error Q28 rad/s
+ *
+ * Needs a compiler with arithmetic right shift of negative numbers, as gcc
+ * and avr-gcc have.
+ */
+
+#ifndef __ATTITUDE_H__
+#define __ATTITUDE_H__
+
+#include <stdint.h>
+
+#define ATTITUDE_ONE_Q16 ((int32_t) 1 << 16)
+#define ATTITUDE_ONE_Q24 ((int32_t) 1 << 24)
+#define ATTITUDE_ONE_Q30 ((int32_t) 1 << 30)
+// 0.2 in Q24
+#define ATTITUDE_DEFAULT_KP 3355443L
+// 0.0005 in Q24
+#define ATTITUDE_DEFAULT_KI 8389L
+
+typedef struct {
+	int32_t kp;	// proportional gain Q24
+	int32_t ki;	// integral gain per update at 100Hz Q24
+	int32_t q0, q1, q2, q3;	// estimated orientation Q30
+	int32_t exInt, eyInt, ezInt;	// scaled integral error Q28
+} Attitude;
+
+void attitudeInit(Attitude* a, int32_t kp, int32_t ki);
+// one filter step, a zero acceleration skips the correction
+void attitudeUpdate(Attitude* a, int32_t gx, int32_t gy, int32_t gz,
+		int32_t ax, int32_t ay, int32_t az, int32_t dt);
+// propagate with gyro rates only
+void attitudePredict(Attitude* a, int32_t gx, int32_t gy, int32_t gz, int32_t dt);
+// correct with an accelerometer sample, dt is time since previous correction,
+// more than 1s counts as 1s
+void attitudeCorrect(Attitude* a, int32_t ax, int32_t ay, int32_t az, int32_t dt);
+
+#endif
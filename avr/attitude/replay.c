@@ -0,0 +1,39 @@
+/*
+ * replay.c
+ * Host program that runs the attitude estimator over samples on stdin, for
+ * checking the C version against FlightAngleARGFixed.
+ *
+ * Input, one sample per line, all integers in the formats of attitude.h:
+ *    u gx gy gz ax ay az dt    attitudeUpdate
+ *    p gx gy gz dt             attitudePredict
+ *    c ax ay az dt             attitudeCorrect
+ * Output, one line per sample: q0 q1 q2 q3 Q30
+ */
+
+#include <stdio.h>
+#include <inttypes.h>
+#include "attitude.h"
+
+int main(void) {
+	Attitude a;
+	attitudeInit(&a, ATTITUDE_DEFAULT_KP, ATTITUDE_DEFAULT_KI);
+	char op;
+	int32_t v[7];
+	while (scanf(" %c", &op) == 1) {
+		if (op == 'u' && scanf("%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32,
+				&v[0], &v[1], &v[2], &v[3], &v[4], &v[5], &v[6]) == 7) {
+			attitudeUpdate(&a, v[0], v[1], v[2], v[3], v[4], v[5], v[6]);
+		} else if (op == 'p' && scanf("%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32,
+				&v[0], &v[1], &v[2], &v[3]) == 4) {
+			attitudePredict(&a, v[0], v[1], v[2], v[3]);
+		} else if (op == 'c' && scanf("%" SCNd32 "%" SCNd32 "%" SCNd32 "%" SCNd32,
+				&v[0], &v[1], &v[2], &v[3]) == 4) {
+			attitudeCorrect(&a, v[0], v[1], v[2], v[3]);
+		} else {
+			fprintf(stderr, "bad input\n");
+			return 1;
+		}
+		printf("%" PRId32 " %" PRId32 " %" PRId32 " %" PRId32 "\n", a.q0, a.q1, a.q2, a.q3);
+	}
+	return 0;
+}
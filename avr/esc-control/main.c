@@ -1,9 +1,13 @@
 /*
  * main.c
- * Control power on 4 escs.
- * - generate RC receiver compatible pulses 1-2ms every 20ms on PB0-3
- * - pulse length controlled with commands on bluetooth module serial 9600bps:
- *    pp0 p1 p2 p3\r - sets power of of motor 0-3, where pi is 00-99
+ * Control power on MOTOR_COUNT escs, 4 unless defined in the build, at most 6.
+ * - generate RC receiver compatible pulses 1-2ms every 20ms on PB0-3 (PB0-5 for 6)
+ * - pulse length controlled with commands on bluetooth module serial 115200bps:
+ *    pp0 p1 p2 p3\r - sets power of of motor 0-3, where pi is 0-255
+ *    or the binary frame 0xA5 seq p0 p1 p2 p3 crc8, see motorframe.h
+ *   with one power per motor
+ * - answers each motor frame, and reports every 200ms, with a telemetry frame
+ *   0xA6 seq flags ticks p0 p1 p2 p3 crc8, see motorframe.h
  * - avr ATmega88 with 20MHz external crystal
  * - bluetooth module RF-BT0417C (http://www.mdfly.com/index.php?main_page=product_info&products_id=63)
  *
@@ -16,8 +20,12 @@
 #include <avr/io.h>
 #include "uartio.h"
 #include "numio.h"
+#include "motorframe.h"
 
-#define MOTOR_COUNT 4
+// MOTOR_COUNT is defined in motorframe.h
+#if MOTOR_COUNT > 6
+#error "PB6 and PB7 hold the crystal, at most 6 escs on PORTB"
+#endif
 // turn off motors if no command in 2s
 #define MAX_TICKS_BETWEEN_COMMANDS 100
 // speed limit as max motor power is not needed
@@ -31,9 +39,17 @@
 
 // 0-19 wait, 20 start generating esc pulses for each motor
 volatile u08 escSignalPhase = 0;
-volatile u08 speed[MOTOR_COUNT] = {0, 0, 0, 0};
+volatile u08 speed[MOTOR_COUNT];
 // watchdog counter
 volatile u08 ticksSinceLastCommand = 0;
+// sequence number of last motor frame
+volatile u08 lastFrameSeq = 0;
+// 1 when a telemetry frame should be sent from the main loop
+volatile u08 telemetryDue = 0;
+// 20ms ticks since last periodic telemetry
+volatile u08 telemetryTicks = 0;
+// send telemetry each 10 ticks, 200ms, also when no commands arrive
+#define TELEMETRY_INTERVAL_TICKS 10
 
 void startEscSignaling();
 
@@ -123,6 +139,10 @@ ISR(TIMER0_COMPA_vect) {
 		} else {
 			ticksSinceLastCommand++;
 		}
+		if (++telemetryTicks >= TELEMETRY_INTERVAL_TICKS) {
+			telemetryTicks = 0;
+			telemetryDue = 1;
+		}
 	} else {
 		escSignalPhase++;
 	}
@@ -163,6 +183,40 @@ ISR(TIMER0_COMPA_vect) {
 	TCNT0 = 0;	// reset to get interrupt again
 }
 
+// called from the uart receive interrupt for each valid binary motor frame
+void motorFrameReceived(MotorFrameDecoder* d) {
+	buttonsEnabled = 0;
+	for (u08 i = 0; i < MOTOR_COUNT; i++) {
+		u08 power = d->motor[i];
+		if (power > POWER_LIMIT) {
+			power = POWER_LIMIT;
+		}
+		speed[i] = power;
+	}
+	lastFrameSeq = d->seq;
+	ticksSinceLastCommand = 0;
+	telemetryDue = 1;
+}
+
+// sends seq, watchdog state and speeds as they are at one instant
+void sendTelemetry() {
+	u08 frame[TELEMETRY_LENGTH];
+	u08 speedCopy[MOTOR_COUNT];
+	cli();
+	u08 seq = lastFrameSeq;
+	u08 ticks = ticksSinceLastCommand;
+	u08 flags = (ticks > MAX_TICKS_BETWEEN_COMMANDS ? TELEMETRY_WATCHDOG : 0)
+			| (buttonsEnabled ? TELEMETRY_BUTTONS : 0);
+	for (u08 i = 0; i < MOTOR_COUNT; i++) {
+		speedCopy[i] = speed[i];
+	}
+	sei();
+	telemetryEncode(frame, seq, flags, ticks, speedCopy);
+	for (u08 i = 0; i < TELEMETRY_LENGTH; i++) {
+		putch(frame[i]);
+	}
+}
+
 void setBluetoothName(char *name) {
 	putstr("AT+NAME");
 	putstr(name);
@@ -185,7 +239,7 @@ int main(void) {
     TCCR0B = 1<<CS02;   // Clock/256 = 78125Hz
     OCR0A = 78;          // 78125 / 78 = 1001.6Hz SIG_OUTPUT_COMPARE0A interrupts
 
-    DDRB = 0b00001111;	// esc signal 0-3
+    DDRB = (1 << MOTOR_COUNT) - 1;	// esc signal 0 to MOTOR_COUNT - 1
 
     uartInit(10); // 129 for 9600bps at 20MHz clock, 10 for 115200
 
@@ -195,11 +249,15 @@ int main(void) {
 //    setBluetoothName("nexter");
 
     while (1) {
+    	if (telemetryDue) {
+    		telemetryDue = 0;
+    		sendTelemetry();
+    	}
     	if (lineAvail()) {
     		u08 ch = getch();
     		putstr("ch"); eol();
     		if (ch == 'p') {
-    			// set power command for motor 0-3
+    			// set power command for motor 0 to MOTOR_COUNT - 1
     			// "pxx xx xx xx\r"
     			buttonsEnabled = 0;
 
@@ -0,0 +1,82 @@
+// binary motor frame decoder, see motorframe.h
+// no avr dependencies, so that it can be tested on the host
+
+#include "motorframe.h"
+
+void motorFrameInit(MotorFrameDecoder* d) {
+	d->len = 0;
+	d->seq = 0;
+	for (u08 i = 0; i < MOTOR_FRAME_MOTORS; i++) {
+		d->motor[i] = 0;
+	}
+	d->errorCount = 0;
+}
+
+u08 crc8(u08 crc, u08 data) {
+	crc ^= data;
+	for (u08 i = 0; i < 8; i++) {
+		if (crc & 0x80) {
+			crc = (crc << 1) ^ 0x07;
+		} else {
+			crc <<= 1;
+		}
+	}
+	return crc;
+}
+
+u08 motorFrameFeed(MotorFrameDecoder* d, u08 ch) {
+	if (d->len == 0) {
+		if (ch == MOTOR_FRAME_SYNC) {
+			d->len = 1;
+			return MOTOR_FRAME_BUSY;
+		}
+		return MOTOR_FRAME_PASS;
+	}
+	d->buf[d->len - 1] = ch;
+	d->len++;
+	if (d->len < MOTOR_FRAME_LENGTH) {
+		return MOTOR_FRAME_BUSY;
+	}
+
+	u08 crc = 0;
+	for (u08 i = 0; i < MOTOR_FRAME_LENGTH - 2; i++) {
+		crc = crc8(crc, d->buf[i]);
+	}
+	if (crc == d->buf[MOTOR_FRAME_LENGTH - 2]) {
+		d->seq = d->buf[0];
+		for (u08 i = 0; i < MOTOR_FRAME_MOTORS; i++) {
+			d->motor[i] = d->buf[1 + i];
+		}
+		d->len = 0;
+		return MOTOR_FRAME_DONE;
+	}
+
+	// bad frame, resynchronise on the next sync byte already received, if any
+	d->errorCount++;
+	d->len = 0;
+	for (u08 i = 0; i < MOTOR_FRAME_LENGTH - 1; i++) {
+		if (d->buf[i] == MOTOR_FRAME_SYNC) {
+			for (u08 j = i + 1; j < MOTOR_FRAME_LENGTH - 1; j++) {
+				d->buf[j - i - 1] = d->buf[j];
+			}
+			d->len = MOTOR_FRAME_LENGTH - 1 - i;
+			break;
+		}
+	}
+	return MOTOR_FRAME_BAD;
+}
+
+void telemetryEncode(u08* frame, u08 seq, u08 flags, u08 ticks, const u08* speed) {
+	frame[0] = TELEMETRY_SYNC;
+	frame[1] = seq;
+	frame[2] = (flags & TELEMETRY_FLAGS) | MOTOR_COUNT << 4;
+	frame[3] = ticks;
+	for (u08 i = 0; i < MOTOR_COUNT; i++) {
+		frame[4 + i] = speed[i];
+	}
+	u08 crc = 0;
+	for (u08 i = 1; i < TELEMETRY_LENGTH - 1; i++) {
+		crc = crc8(crc, frame[i]);
+	}
+	frame[TELEMETRY_LENGTH - 1] = crc;
+}
@@ -0,0 +1,62 @@
+#ifndef __MOTORFRAME_H__
+#define __MOTORFRAME_H__
+
+// binary motor power frame, the compact alternative to "pxx xx xx xx\r":
+//    0xA5 seq m0 m1 m2 m3 crc
+// seq counts frames, m0-m3 are motor powers 0-255 and crc is crc8 (polynomial
+// 0x07, initial value 0) of seq and m0-m3. The sync byte is never ascii, so
+// ascii commands can be mixed with frames on the same line. A frame has
+// MOTOR_COUNT powers, 4 above.
+// Made by MotorFrameEncoder in android/gyrostream.
+
+#include "types.h"
+
+// number of escs, build with -DMOTOR_COUNT=6 for a hexa, matching the
+// frame property in gyrostream
+#ifndef MOTOR_COUNT
+#define MOTOR_COUNT 4
+#endif
+
+#define MOTOR_FRAME_SYNC 0xA5
+#define MOTOR_FRAME_MOTORS MOTOR_COUNT
+#define MOTOR_FRAME_LENGTH (3 + MOTOR_FRAME_MOTORS)
+
+// results of motorFrameFeed
+#define MOTOR_FRAME_PASS 0	// not frame data, handle as ascii
+#define MOTOR_FRAME_BUSY 1	// taken as part of a frame not yet complete
+#define MOTOR_FRAME_DONE 2	// completed a valid frame, see seq and motor
+#define MOTOR_FRAME_BAD 3	// completed a frame with crc error, dropped
+
+typedef struct {
+	u08 len;	// bytes of the current frame received, 0 when waiting for sync
+	u08 buf[MOTOR_FRAME_LENGTH - 1];	// current frame after the sync byte
+	u08 seq;	// of last valid frame
+	u08 motor[MOTOR_FRAME_MOTORS];	// of last valid frame
+	u16 errorCount;	// frames dropped for crc error
+} MotorFrameDecoder;
+
+void motorFrameInit(MotorFrameDecoder* d);
+// feed one received byte, returns one of MOTOR_FRAME_PASS etc
+u08 motorFrameFeed(MotorFrameDecoder* d, u08 ch);
+u08 crc8(u08 crc, u08 data);
+
+// called from the uart receive interrupt for each valid frame, implemented
+// by the application
+void motorFrameReceived(MotorFrameDecoder* d);
+
+// telemetry frame sent back to the phone:
+//    0xA6 seq flags ticks m0 m1 m2 m3 crc
+// seq is that of the last valid motor frame, flags holds the TELEMETRY_ bits
+// below, the other low bits 0, and the motor count in the high nibble, ticks counts 20ms ticks since
+// the last command, m0-m3 are the current motor speeds and crc is crc8 of seq
+// to the last speed. Decoded by TelemetryDecoder in android/gyrostream.
+#define TELEMETRY_SYNC 0xA6
+#define TELEMETRY_LENGTH (5 + MOTOR_COUNT)
+#define TELEMETRY_WATCHDOG 0x01	// motors stopped for lack of commands
+#define TELEMETRY_BUTTONS 0x02	// manual power buttons enabled
+#define TELEMETRY_FLAGS (TELEMETRY_WATCHDOG | TELEMETRY_BUTTONS)
+
+// fills frame with TELEMETRY_LENGTH bytes
+void telemetryEncode(u08* frame, u08 seq, u08 flags, u08 ticks, const u08* speed);
+
+#endif
@@ -1,10 +1,12 @@
 // buffered uart io library
 // receive by interrupt into buffer with xon/xoff control
+// binary motor frames are decoded in the interrupt, see motorframe.h
 // send synchronously
 
 #include <avr/interrupt.h>
 #include <avr/io.h>
 #include "uartio.h"
+#include "motorframe.h"
 
 volatile unsigned char inbuf[100];
 volatile u08 inbufPutPos = 0;       // put next received char here in inbuf
@@ -12,6 +14,7 @@ volatile u08 inbufGetPos = 0;       // get next char here in inbuf
 volatile u08 inbufCount = 0;     // nbr of chars in inbuf
 volatile u08 inbufLineCount = 0;   // number of complete lines in inbuf (lines terminated with cr)
 volatile u08 isStopped = 0;
+MotorFrameDecoder motorFrameDecoder;
 #define LOW_LEVEL_PERCENT 40
 #define HIGH_LEVEL_PERCENT 85
 
@@ -20,6 +23,7 @@ void uartInit(u16 baudRateFactor) {
     inbufGetPos = 0;
     inbufCount = 0;
     inbufLineCount = 0;
+    motorFrameInit(&motorFrameDecoder);
 
     // enable RxD/TxD and receive interrupt
     UCSR0B = _BV(RXCIE0)|_BV(RXEN0)|_BV(TXEN0);
@@ -35,7 +39,14 @@ void uartInit(u16 baudRateFactor) {
 
 SIGNAL(USART_RX_vect) {
 //	PORTB |= 1;
-    u08 ch = UDR0 & 0x7f;
+    u08 ch = UDR0;	// all 8 bits, frames are binary
+    u08 frameResult = motorFrameFeed(&motorFrameDecoder, ch);
+    if (frameResult == MOTOR_FRAME_DONE) {
+        motorFrameReceived(&motorFrameDecoder);
+    }
+    if (frameResult != MOTOR_FRAME_PASS) {
+        return;
+    }
 /*    if (ch == 'S' - ' ' || ch == 'Q' - ' ') {
         return;
     }*/
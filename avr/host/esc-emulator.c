@@ -0,0 +1,104 @@
+/*
+ * esc-emulator.c
+ * Host program answering like esc-control, with its motor frame decoder and
+ * telemetry encoder, so the phone side can be run against it on a pc.
+ *
+ *    esc-emulator
+ * reads uart bytes on stdin and writes the answers on stdout.
+ *
+ *    esc-emulator -pty
+ * opens a pseudo terminal in raw mode, prints the name of its slave side,
+ * such as /dev/pts/5, and answers on it until killed. Open the name with
+ * StreamMotorLink.open, as MotorLinkBenchmark in desktop/flighttools does.
+ *
+ * Each valid motor frame is answered with a telemetry frame and each ascii
+ * line with "ch\r\n". The 200ms telemetry and the watchdog are not emulated.
+ */
+
+#define _XOPEN_SOURCE 600
+#define _DEFAULT_SOURCE // cfmakeraw
+#include <fcntl.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <termios.h>
+#include <unistd.h>
+#include "motorframe.h"
+
+// speed limit as in esc-control
+#define POWER_LIMIT 200
+
+static u08 speed[MOTOR_COUNT];
+static u08 lastFrameSeq;
+
+void motorFrameReceived(MotorFrameDecoder* d) {
+	for (int i = 0; i < MOTOR_COUNT; i++) {
+		speed[i] = d->motor[i] > POWER_LIMIT ? POWER_LIMIT : d->motor[i];
+	}
+	lastFrameSeq = d->seq;
+}
+
+static int writeAll(int fd, const u08* data, size_t length) {
+	while (length > 0) {
+		ssize_t n = write(fd, data, length);
+		if (n < 0) {
+			return -1;
+		}
+		data += n;
+		length -= (size_t) n;
+	}
+	return 0;
+}
+
+static int answer(int in, int out) {
+	MotorFrameDecoder d;
+	motorFrameInit(&d);
+	u08 buffer[1024];
+	u08 frame[TELEMETRY_LENGTH];
+	ssize_t n;
+	while ((n = read(in, buffer, sizeof buffer)) > 0) {
+		for (ssize_t i = 0; i < n; i++) {
+			u08 result = motorFrameFeed(&d, buffer[i]);
+			if (result == MOTOR_FRAME_DONE) {
+				motorFrameReceived(&d);
+				telemetryEncode(frame, lastFrameSeq, 0, 0, speed);
+				if (writeAll(out, frame, TELEMETRY_LENGTH) < 0) {
+					return 1;
+				}
+			} else if (result == MOTOR_FRAME_PASS && buffer[i] == '\r') {
+				if (writeAll(out, (const u08*) "ch\r\n", 4) < 0) {
+					return 1;
+				}
+			}
+		}
+	}
+	return 0;
+}
+
+static int pty(void) {
+	int master = posix_openpt(O_RDWR | O_NOCTTY);
+	if (master < 0 || grantpt(master) < 0 || unlockpt(master) < 0) {
+		perror("pty");
+		return 1;
+	}
+	const char* name = ptsname(master);
+	// keep the slave open, so that the master reads no hangup between users
+	int slave = open(name, O_RDWR | O_NOCTTY);
+	struct termios tio;
+	if (slave < 0 || tcgetattr(slave, &tio) < 0) {
+		perror(name);
+		return 1;
+	}
+	cfmakeraw(&tio);
+	tcsetattr(slave, TCSANOW, &tio);
+	printf("%s\n", name);
+	fflush(stdout);
+	return answer(master, master);
+}
+
+int main(int argc, char** argv) {
+	if (argc == 2 && strcmp(argv[1], "-pty") == 0) {
+		return pty();
+	}
+	return answer(0, 1);
+}
@@ -0,0 +1,159 @@
+/*
+ * motorframe-decode.c
+ * Host program around the esc-control motor frame decoder.
+ *
+ *    motorframe-decode
+ * decodes bytes on stdin as the uart interrupt does and prints
+ *    F seq m0 m1 m2 m3    for each valid frame, MOTOR_COUNT powers
+ *    A text               for each ascii line passed through
+ *    E errors             crc error count at end of input
+ * for MotorFrameFuzz in desktop/flighttools.
+ *
+ *    motorframe-decode -telemetry
+ * reads lines "seq flags ticks m0 m1 m2 m3" on stdin and writes each as a
+ * telemetry frame followed by the "ch\r\n" text esc-control prints, for
+ * TelemetryCheck in desktop/flighttools.
+ *
+ *    motorframe-decode -fuzz count seed
+ * feeds count random bytes with frames mixed in and checks the decoder
+ * invariants, exit status 1 on failure. Built with sanitizers by the Makefile.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "motorframe.h"
+
+// the application callback, not used here
+void motorFrameReceived(MotorFrameDecoder* d) {
+	(void) d;
+}
+
+static u08 frameCrc(const u08* frame) {
+	u08 crc = 0;
+	for (int i = 1; i < MOTOR_FRAME_LENGTH - 1; i++) {
+		crc = crc8(crc, frame[i]);
+	}
+	return crc;
+}
+
+static int decode(void) {
+	MotorFrameDecoder d;
+	motorFrameInit(&d);
+	char line[256];
+	size_t lineLength = 0;
+	int c;
+	while ((c = getchar()) != EOF) {
+		u08 result = motorFrameFeed(&d, (u08) c);
+		if (result == MOTOR_FRAME_DONE) {
+			printf("F %d", d.seq);
+			for (int i = 0; i < MOTOR_FRAME_MOTORS; i++) {
+				printf(" %d", d.motor[i]);
+			}
+			printf("\n");
+		} else if (result == MOTOR_FRAME_PASS) {
+			if (c == '\r') {
+				line[lineLength] = 0;
+				printf("A %s\n", line);
+				lineLength = 0;
+			} else if (lineLength < sizeof line - 1) {
+				line[lineLength++] = (char) c;
+			}
+		}
+	}
+	printf("E %u\n", d.errorCount);
+	return 0;
+}
+
+static int fuzz(long count, unsigned seed) {
+	MotorFrameDecoder d;
+	motorFrameInit(&d);
+	srand(seed);
+	u08 frame[MOTOR_FRAME_LENGTH];
+	long sent = 0, intact = 0, decoded = 0, falseAccepts = 0;
+	for (long n = 0; n < count; ) {
+		int kind = rand() % 4;
+		int length;
+		if (kind == 0) {
+			// noise, biased towards the sync byte
+			length = 1;
+			frame[0] = rand() % 4 == 0 ? MOTOR_FRAME_SYNC : (u08) rand();
+		} else {
+			frame[0] = MOTOR_FRAME_SYNC;
+			for (int i = 1; i < MOTOR_FRAME_LENGTH - 1; i++) {
+				frame[i] = (u08) rand();
+			}
+			frame[MOTOR_FRAME_LENGTH - 1] = frameCrc(frame);
+			length = MOTOR_FRAME_LENGTH;
+			sent++;
+			if (kind == 1) {
+				// flip one bit, crc8 must catch it
+				frame[1 + rand() % (MOTOR_FRAME_LENGTH - 1)] ^= 1 << (rand() % 8);
+			} else if (kind == 2) {
+				// drop the tail
+				length = 1 + rand() % (MOTOR_FRAME_LENGTH - 1);
+			} else {
+				intact++;
+			}
+		}
+		// a frame starting with the decoder waiting for sync must be decoded right
+		int aligned = d.len == 0 && length == MOTOR_FRAME_LENGTH;
+		int accepted = 0;
+		for (int i = 0; i < length; i++, n++) {
+			u08 result = motorFrameFeed(&d, frame[i]);
+			if (d.len >= MOTOR_FRAME_LENGTH) {
+				fprintf(stderr, "len %d out of range\n", d.len);
+				return 1;
+			}
+			if (result == MOTOR_FRAME_DONE) {
+				decoded++;
+				if (kind == 3 && i == length - 1 && d.seq == frame[1]
+						&& memcmp(d.motor, frame + 2, MOTOR_FRAME_MOTORS) == 0) {
+					accepted = 1;
+				} else {
+					// garbage that happened to pass crc8, about 1 in 256 misaligned frames
+					falseAccepts++;
+					if (aligned && kind == 1) {
+						fprintf(stderr, "bit flipped frame accepted\n");
+						return 1;
+					}
+				}
+			}
+		}
+		if (aligned && kind == 3 && !accepted) {
+			fprintf(stderr, "aligned intact frame not decoded\n");
+			return 1;
+		}
+	}
+	printf("%ld bytes, %ld frames sent, %ld intact, %ld decoded, %ld false accepts, %u crc errors\n",
+			count, sent, intact, decoded, falseAccepts, d.errorCount);
+	return 0;
+}
+
+static int telemetry(void) {
+	unsigned seq, flags, ticks, value;
+	u08 speed[MOTOR_COUNT];
+	u08 frame[TELEMETRY_LENGTH];
+	while (scanf("%u %u %u", &seq, &flags, &ticks) == 3) {
+		for (int i = 0; i < MOTOR_COUNT; i++) {
+			if (scanf("%u", &value) != 1) {
+				return 1;
+			}
+			speed[i] = (u08) value;
+		}
+		telemetryEncode(frame, (u08) seq, (u08) flags, (u08) ticks, speed);
+		fwrite(frame, 1, TELEMETRY_LENGTH, stdout);
+		fputs("ch\r\n", stdout);
+	}
+	return 0;
+}
+
+int main(int argc, char** argv) {
+	if (argc == 4 && strcmp(argv[1], "-fuzz") == 0) {
+		return fuzz(atol(argv[2]), (unsigned) atol(argv[3]));
+	}
+	if (argc == 2 && strcmp(argv[1], "-telemetry") == 0) {
+		return telemetry();
+	}
+	return decode();
+}
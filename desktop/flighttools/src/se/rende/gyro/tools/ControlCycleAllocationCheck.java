@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import se.rende.gyro.CascadedController;
+import se.rende.gyro.FlightAngleARG;
+import se.rende.gyro.FlightController;
+import se.rende.gyro.FlightParameters;
+import se.rende.gyro.LatestFrameWriter;
+import se.rende.gyro.MotorCommandEncoder;
+import se.rende.gyro.MotorCommandThrottle;
+import se.rende.gyro.MotorFrameEncoder;
+import se.rende.gyro.MotorMixer;
+import se.rende.gyro.PIDdata;
+import se.rende.gyro.SensorFusion;
+
+/**
+ * Checks that the pure java part of a control cycle allocates nothing: sensor
+ * fusion, reading the quaternion, the cascaded FlightController with its
+ * PIDdata, mixing, MotorCommandThrottle, encoding the motor frame and command,
+ * and handing the frame to a LatestFrameWriter. Also checks that
+ * MotorCommandEncoder gives the same bytes as the string command did.
+ * Exits with 1 on failure.
+ * <p>
+ * Needs a HotSpot JVM for per thread allocation counting.
+ * <p>
+ * Usage: ControlCycleAllocationCheck [cycles]
+ * @author dag
+ *
+ */
+public class ControlCycleAllocationCheck {
+	private static final int WARMUP_CYCLES = 200000;
+
+	public static void main(String[] args) {
+		int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		boolean ok = checkEncoding();
+
+		SyntheticImu imu = SyntheticImu.typical(10000);
+		Cycle cycle = new Cycle(imu);
+		cycle.writer.start();
+		for (int i = 0; i < WARMUP_CYCLES; i++) {
+			cycle.run();
+		}
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		// the counter reading itself may allocate, measure that first
+		long before = threads.getThreadAllocatedBytes(threadId);
+		long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+		long offered = cycle.writer.getOfferedCount();
+		before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < cycles; i++) {
+			cycle.run();
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+		offered = cycle.writer.getOfferedCount() - offered;
+		cycle.writer.stop();
+		// the sum keeps the cycle results in use
+		System.out.printf("%d control cycles allocated %d bytes, %d frames sent, sum %d%n", cycles, allocated,
+				offered, cycle.sum);
+		if (allocated > 0) {
+			ok = false;
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Returns true if the encoder matches the string command for a range of powers.
+	 */
+	static boolean checkEncoding() {
+		MotorCommandEncoder encoder = new MotorCommandEncoder();
+		double[] power = new double[4];
+		for (int v = -300; v <= 300; v++) {
+			power[0] = v;
+			power[1] = v * 0.37;
+			power[2] = 255 - v;
+			power[3] = v / 7.0;
+			String expected = "p" + (int) (power[0]) + " " + (int) (power[1]) + " "
+					+ (int) (power[2]) + " " + (int) (power[3]) + "\r";
+			int length = encoder.encode(power);
+			String actual = new String(encoder.getBuffer(), 0, length);
+			if (!expected.equals(actual)) {
+				System.out.println("encoded " + actual.trim() + ", expected " + expected.trim());
+				return false;
+			}
+		}
+		System.out.println("motor commands encoded as before");
+		return true;
+	}
+
+	/**
+	 * One gyro event and one control cycle worth of work as FlightService
+	 * does them, with an accel sample every fourth.
+	 */
+	static class Cycle {
+		final SyntheticImu imu;
+		final FlightParameters parameters = FlightParameters.DEFAULTS;
+		final SensorFusion sensorFusion = new SensorFusion(new FlightAngleARG());
+		final FlightController flightController = new CascadedController(pids(), pids());
+		final MotorCommandThrottle throttle = new MotorCommandThrottle();
+		final MotorFrameEncoder frameEncoder = new MotorFrameEncoder();
+		final MotorCommandEncoder encoder = new MotorCommandEncoder();
+		final LatestFrameWriter writer = new LatestFrameWriter(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, frameEncoder.getBuffer().length);
+		final double[] q = new double[4];
+		final double[] force = new double[3];
+		final double[] power = new double[MotorMixer.MAX_MOTORS];
+		long timestamp = 1;
+		int i;
+		long sum;
+
+		Cycle(SyntheticImu imu) {
+			this.imu = imu;
+			sensorFusion.init();
+			flightController.init();
+		}
+
+		static PIDdata[] pids() {
+			return new PIDdata[] {new PIDdata(), new PIDdata(), new PIDdata()};
+		}
+
+		void run() {
+			int j = i++ % imu.length;
+			timestamp += (long) (imu.dt[j] * 1e9);
+			if (j % 4 == 0) {
+				sensorFusion.accel(timestamp, imu.ax[j], imu.ay[j], imu.az[j]);
+			}
+			double dT = sensorFusion.gyro(timestamp, imu.gx[j], imu.gy[j], imu.gz[j]);
+			flightController.rate(parameters, imu.gx[j], imu.gy[j], imu.gz[j], dT);
+			sensorFusion.getFlightAngle().getQuaternion(q);
+			flightController.control(parameters, q, 0, 0, 0, imu.dt[j], force);
+			MotorMixer mixer = parameters.getMotorMixer();
+			mixer.mix(128, force[0], force[1], force[2], 0, 255, power);
+			int motors = mixer.getMotorCount();
+			if (throttle.shouldSend(power, motors, timestamp, parameters.getMotorDeadband(),
+					parameters.getHeartbeatPeriod())) {
+				int length = frameEncoder.encode(power, motors);
+				writer.offer(frameEncoder.getBuffer(), 0, length);
+				sum += length + encoder.encode(power, motors);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import se.rende.gyro.FlightAngleARG;
+import se.rende.gyro.FlightAngleARGFixed;
+
+/**
+ * Checks that the C attitude estimator in avr/attitude gives exactly the
+ * same quaternion as FlightAngleARGFixed, sample by sample, and shows how
+ * far FlightAngleARGFixed strays from FlightAngleARG.
+ * <p>
+ * Build the C side first with make in avr/attitude.
+ * <p>
+ * Usage: FixedPointCrossCheck [replay program] [samples]
+ * @author dag
+ *
+ */
+public class FixedPointCrossCheck {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String replay = args.length > 0 ? args[0] : "../../avr/attitude/replay";
+		int samples = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		// tilted start and a gyro bias, to exercise the integral term
+		SyntheticImu imu = new SyntheticImu(samples, 100, 0.3, 0.2, -0.1, 0.02, 0.01, 0.02, 4711);
+		final int[][] ops = fixedOps(imu);
+
+		final Process process = new ProcessBuilder(new File(replay).getPath()).start();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(process.getOutputStream()));
+				for (int[] op : ops) {
+					out.print((char) op[0]);
+					for (int i = 1; i < op.length; i++) {
+						out.print(' ');
+						out.print(op[i]);
+					}
+					out.println();
+				}
+				out.close();
+			}
+		};
+		writer.start();
+
+		FlightAngleARGFixed fixed = new FlightAngleARGFixed();
+		int[] q = new int[4];
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		int mismatches = 0;
+		for (int i = 0; i < ops.length; i++) {
+			apply(fixed, ops[i]);
+			fixed.getQuaternionFixed(q);
+			String line = in.readLine();
+			if (line == null) {
+				System.out.println("replay program ended after " + i + " samples");
+				mismatches++;
+				break;
+			}
+			String expected = q[0] + " " + q[1] + " " + q[2] + " " + q[3];
+			if (!line.equals(expected) && mismatches++ < 10) {
+				System.out.println("sample " + i + ": java " + expected + ", c " + line);
+			}
+		}
+		in.close();
+		writer.join();
+		process.waitFor();
+		System.out.println(mismatches == 0
+				? ops.length + " samples, C and Java identical"
+				: mismatches + " of " + ops.length + " samples differ");
+
+		FlightAngleARG reference = new FlightAngleARG();
+		fixed.init();
+		double max = 0;
+		for (int i = 0; i < imu.length; i++) {
+			reference.calculate(imu.gx[i], imu.gy[i], imu.gz[i], imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			fixed.calculate(imu.gx[i], imu.gy[i], imu.gz[i], imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			for (int axis = 0; axis < 2; axis++) {
+				max = Math.max(max, Math.abs(reference.getAngle(axis) - fixed.getAngle(axis)));
+			}
+		}
+		System.out.printf("max pitch/roll deviation from FlightAngleARG %.2e rad%n", max);
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Converts the trace to fixed point operations, mostly updates with
+	 * stretches of predict and correct as SensorFusion makes. Now and then a
+	 * correction comes seconds after the previous one, as after a stalled
+	 * accelerometer.
+	 */
+	static int[][] fixedOps(SyntheticImu imu) {
+		int[][] ops = new int[imu.length][];
+		int correctDt = 0;
+		for (int i = 0; i < imu.length; i++) {
+			int gx = toQ16(imu.gx[i]), gy = toQ16(imu.gy[i]), gz = toQ16(imu.gz[i]);
+			int ax = toQ16(imu.ax[i]), ay = toQ16(imu.ay[i]), az = toQ16(imu.az[i]);
+			int dt = (int) Math.round(imu.dt[i] * (double) FlightAngleARGFixed.ONE_Q24);
+			if ((i / 1000) % 2 == 0) {
+				ops[i] = new int[] {'u', gx, gy, gz, ax, ay, az, dt};
+			} else if (i % 4 != 3) {
+				ops[i] = new int[] {'p', gx, gy, gz, dt};
+				correctDt += dt;
+			} else {
+				int gap = i % 10000 == 5003 ? 3 * FlightAngleARGFixed.ONE_Q24 : correctDt + dt;
+				ops[i] = new int[] {'c', ax, ay, az, gap};
+				correctDt = 0;
+			}
+		}
+		return ops;
+	}
+
+	static void apply(FlightAngleARGFixed fixed, int[] op) {
+		switch (op[0]) {
+		case 'u':
+			fixed.calculateFixed(op[1], op[2], op[3], op[4], op[5], op[6], op[7]);
+			break;
+		case 'p':
+			fixed.predictFixed(op[1], op[2], op[3], op[4]);
+			break;
+		default:
+			fixed.correctFixed(op[1], op[2], op[3], op[4]);
+		}
+	}
+
+	static int toQ16(double x) {
+		return (int) Math.round(x * FlightAngleARGFixed.ONE_Q16);
+	}
+}
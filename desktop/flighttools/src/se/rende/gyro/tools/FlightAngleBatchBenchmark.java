@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import se.rende.gyro.FlightAngleARG;
+
+/**
+ * Measures samples per second of FlightAngleARG.calculateBatch() against
+ * calling calculate() per sample, and checks that both give the same result.
+ * <p>
+ * Usage: FlightAngleBatchBenchmark [samples] [rounds]
+ * @author dag
+ *
+ */
+public class FlightAngleBatchBenchmark {
+	private static final int WARMUP_ROUNDS = 10;
+
+	public static void main(String[] args) {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		SyntheticImu imu = SyntheticImu.typical(samples);
+		FlightAngleARG flightAngle = new FlightAngleARG();
+		double[] q0 = new double[samples];
+		double[] q1 = new double[samples];
+		double[] q2 = new double[samples];
+		double[] q3 = new double[samples];
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			perSample(flightAngle, imu, q0, q1, q2, q3);
+			batchQuaternion(flightAngle, imu, q0, q1, q2, q3);
+			batchEuler(flightAngle, imu, q0, q1, q2);
+		}
+		long[] nanos = new long[3];
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			perSample(flightAngle, imu, q0, q1, q2, q3);
+			long t1 = System.nanoTime();
+			batchQuaternion(flightAngle, imu, q0, q1, q2, q3);
+			long t2 = System.nanoTime();
+			batchEuler(flightAngle, imu, q0, q1, q2);
+			long t3 = System.nanoTime();
+			nanos[0] += t1 - start;
+			nanos[1] += t2 - t1;
+			nanos[2] += t3 - t2;
+		}
+		String[] names = {"calculate()", "calculateBatch() quaternion", "calculateBatch() euler"};
+		for (int j = 0; j < names.length; j++) {
+			System.out.printf("%-28s %6.2f M samples/s%n", names[j],
+					(double) samples * rounds / nanos[j] * 1000);
+		}
+
+		System.out.println(identical(flightAngle, imu)
+				? "batch and per sample results identical"
+				: "batch and per sample results DIFFER");
+	}
+
+	static void perSample(FlightAngleARG flightAngle, SyntheticImu imu,
+			double[] q0, double[] q1, double[] q2, double[] q3) {
+		flightAngle.init();
+		double[] q = new double[4];
+		for (int i = 0; i < imu.length; i++) {
+			flightAngle.calculate(imu.gx[i], imu.gy[i], imu.gz[i],
+					imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			flightAngle.getQuaternion(q);
+			q0[i] = q[0];
+			q1[i] = q[1];
+			q2[i] = q[2];
+			q3[i] = q[3];
+		}
+	}
+
+	static void batchQuaternion(FlightAngleARG flightAngle, SyntheticImu imu,
+			double[] q0, double[] q1, double[] q2, double[] q3) {
+		flightAngle.init();
+		flightAngle.calculateBatch(imu.gx, imu.gy, imu.gz, imu.ax, imu.ay, imu.az, imu.dt,
+				0, imu.length, q0, q1, q2, q3);
+	}
+
+	static void batchEuler(FlightAngleARG flightAngle, SyntheticImu imu,
+			double[] pitch, double[] roll, double[] yaw) {
+		flightAngle.init();
+		flightAngle.calculateBatch(imu.gx, imu.gy, imu.gz, imu.ax, imu.ay, imu.az, imu.dt,
+				0, imu.length, pitch, roll, yaw);
+	}
+
+	/**
+	 * Returns true if both batch variants, run in two halves, match calculate() exactly.
+	 */
+	static boolean identical(FlightAngleARG flightAngle, SyntheticImu imu) {
+		int n = imu.length;
+		double[] q0 = new double[n], q1 = new double[n], q2 = new double[n], q3 = new double[n];
+		double[] b0 = new double[n], b1 = new double[n], b2 = new double[n], b3 = new double[n];
+		perSample(flightAngle, imu, q0, q1, q2, q3);
+		flightAngle.init();
+		int half = n / 2;
+		flightAngle.calculateBatch(imu.gx, imu.gy, imu.gz, imu.ax, imu.ay, imu.az, imu.dt,
+				0, half, b0, b1, b2, b3);
+		double[] c0 = new double[n - half], c1 = new double[n - half], c2 = new double[n - half], c3 = new double[n - half];
+		flightAngle.calculateBatch(imu.gx, imu.gy, imu.gz, imu.ax, imu.ay, imu.az, imu.dt,
+				half, n - half, c0, c1, c2, c3);
+		System.arraycopy(c0, 0, b0, half, n - half);
+		System.arraycopy(c1, 0, b1, half, n - half);
+		System.arraycopy(c2, 0, b2, half, n - half);
+		System.arraycopy(c3, 0, b3, half, n - half);
+		for (int i = 0; i < n; i++) {
+			if (q0[i] != b0[i] || q1[i] != b1[i] || q2[i] != b2[i] || q3[i] != b3[i]) {
+				return false;
+			}
+		}
+
+		FlightAngleARG reference = new FlightAngleARG();
+		flightAngle.init();
+		flightAngle.calculateBatch(imu.gx, imu.gy, imu.gz, imu.ax, imu.ay, imu.az, imu.dt,
+				0, n, b0, b1, b2);
+		for (int i = 0; i < n; i++) {
+			reference.calculate(imu.gx[i], imu.gy[i], imu.gz[i],
+					imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			double[] angles = reference.getAngles();
+			if (angles[0] != b0[i] || angles[1] != b1[i] || angles[2] != b2[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import se.rende.gyro.FlightAngle;
+import se.rende.gyro.FlightAngleARG;
+import se.rende.gyro.FlightAngleARGFixed;
+import se.rende.gyro.FlightAngleARGFloat;
+import se.rende.gyro.FlightAngleESKF;
+import se.rende.gyro.FlightAngleMadgwick;
+
+/**
+ * Measures ns per update of the FlightAngle implementations on a synthetic
+ * trace, and how far their pitch and roll stray from FlightAngleARG.
+ * <p>
+ * Usage: FlightAngleBenchmark [samples] [rounds]
+ * @author dag
+ *
+ */
+public class FlightAngleBenchmark {
+	private static final int WARMUP_ROUNDS = 10;
+
+	public static void main(String[] args) {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		SyntheticImu imu = SyntheticImu.typical(samples);
+
+		FlightAngle[] flightAngles = {
+				new FlightAngleARG(),
+				new FlightAngleARGFloat(),
+				new FlightAngleARGFixed(),
+				new FlightAngleMadgwick(),
+				new FlightAngleESKF()};
+
+		for (FlightAngle flightAngle : flightAngles) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(flightAngle, imu);
+			}
+		}
+		// alternate implementations so that clock and thermal changes hit all alike
+		long[] nanos = new long[flightAngles.length];
+		double sink = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (int j = 0; j < flightAngles.length; j++) {
+				long start = System.nanoTime();
+				sink += run(flightAngles[j], imu);
+				nanos[j] += System.nanoTime() - start;
+			}
+		}
+		for (int j = 0; j < flightAngles.length; j++) {
+			System.out.printf("%-24s %8.1f ns/update%n", flightAngles[j].getClass().getSimpleName(),
+					(double) nanos[j] / rounds / samples);
+		}
+
+		FlightAngle reference = new FlightAngleARG();
+		for (int j = 1; j < flightAngles.length; j++) {
+			System.out.printf("%-24s max pitch/roll deviation from FlightAngleARG %.2e rad%n",
+					flightAngles[j].getClass().getSimpleName(),
+					maxDeviation(reference, flightAngles[j], imu, 10));
+		}
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Runs the trace and reads the quaternion after each update, as the control loop does.
+	 */
+	static double run(FlightAngle flightAngle, SyntheticImu imu) {
+		flightAngle.init();
+		double[] q = new double[4];
+		double sum = 0;
+		for (int i = 0; i < imu.length; i++) {
+			flightAngle.calculate(imu.gx[i], imu.gy[i], imu.gz[i],
+					imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			flightAngle.getQuaternion(q);
+			sum += q[0];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the largest pitch or roll difference between a and b, fed with
+	 * the trace repeated rounds times. Yaw is left out as it drifts freely.
+	 */
+	static double maxDeviation(FlightAngle a, FlightAngle b, SyntheticImu imu, int rounds) {
+		a.init();
+		b.init();
+		double max = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < imu.length; i++) {
+				a.calculate(imu.gx[i], imu.gy[i], imu.gz[i], imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+				b.calculate(imu.gx[i], imu.gy[i], imu.gz[i], imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+				for (int axis = 0; axis < 2; axis++) {
+					max = Math.max(max, Math.abs(a.getAngle(axis) - b.getAngle(axis)));
+				}
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import se.rende.gyro.FlightAngle;
+import se.rende.gyro.FlightAngleARG;
+import se.rende.gyro.FlightAngleESKF;
+import se.rende.gyro.FlightAngleMadgwick;
+
+/**
+ * Compares how fast the FlightAngle implementations find pitch and roll after
+ * init(), when the craft starts tilted.
+ * <p>
+ * FlightAngleMadgwick and FlightAngleESKF set their attitude from the first
+ * accelerometer sample, FlightAngleARG starts level. To compare the filters
+ * themselves, each is first run from level, seeded with a level sample, and
+ * then as it starts on its own.
+ * <p>
+ * Usage: FlightAngleConvergence [roll rad] [pitch rad] [tolerance rad]
+ * @author dag
+ *
+ */
+public class FlightAngleConvergence {
+	private static final int PITCH = 0;
+	private static final int ROLL = 1;
+	private static final double RATE = 100;
+
+	public static void main(String[] args) {
+		double initialRoll = args.length > 0 ? Double.parseDouble(args[0]) : 0.5;
+		double initialPitch = args.length > 1 ? Double.parseDouble(args[1]) : -0.3;
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+		// 60s of gentle motion with noise
+		SyntheticImu imu = new SyntheticImu((int) (60 * RATE), RATE, 0.1,
+				initialRoll, initialPitch, 0, 0.01, 0.02, 4711);
+
+		FlightAngle[] flightAngles = {
+				new FlightAngleARG(),
+				new FlightAngleMadgwick(),
+				new FlightAngleESKF()};
+		for (boolean level : new boolean[] {true, false}) {
+			System.out.println(level ? "from level:" : "as started by init(), seeded from the first sample if the filter does:");
+			for (FlightAngle flightAngle : flightAngles) {
+				int settled = settlingIndex(flightAngle, imu, tolerance, level);
+				System.out.printf("%-24s %s, rms tilt error after settling %.4f rad%n",
+						flightAngle.getClass().getSimpleName(),
+						settled < 0 ? "never within tolerance" : String.format("within %.3f rad after %.2fs", tolerance, settled / RATE),
+						rmsTiltError(flightAngle, imu, settled < 0 ? 0 : settled, level));
+			}
+		}
+	}
+
+	/**
+	 * Resets flightAngle, and if level seeds it with a level accelerometer
+	 * sample so that it starts as FlightAngleARG does.
+	 */
+	static void start(FlightAngle flightAngle, boolean level) {
+		flightAngle.init();
+		if (level) {
+			flightAngle.correct(0, 0, -1, 0);
+		}
+	}
+
+	/**
+	 * Returns the index of the sample after which pitch and roll error stay within tolerance, or -1.
+	 */
+	static int settlingIndex(FlightAngle flightAngle, SyntheticImu imu, double tolerance, boolean level) {
+		start(flightAngle, level);
+		int settled = -1;
+		for (int i = 0; i < imu.length; i++) {
+			flightAngle.calculate(imu.gx[i], imu.gy[i], imu.gz[i],
+					imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			if (tiltError(flightAngle, imu, i) > tolerance) {
+				settled = -1;
+			} else if (settled < 0) {
+				settled = i;
+			}
+		}
+		return settled;
+	}
+
+	static double rmsTiltError(FlightAngle flightAngle, SyntheticImu imu, int from, boolean level) {
+		start(flightAngle, level);
+		double sum = 0;
+		for (int i = 0; i < imu.length; i++) {
+			flightAngle.calculate(imu.gx[i], imu.gy[i], imu.gz[i],
+					imu.ax[i], imu.ay[i], imu.az[i], imu.dt[i]);
+			if (i >= from) {
+				double error = tiltError(flightAngle, imu, i);
+				sum += error * error;
+			}
+		}
+		return Math.sqrt(sum / (imu.length - from));
+	}
+
+	static double tiltError(FlightAngle flightAngle, SyntheticImu imu, int i) {
+		return Math.max(Math.abs(flightAngle.getAngle(PITCH) - imu.pitch[i]),
+				Math.abs(flightAngle.getAngle(ROLL) - imu.roll[i]));
+	}
+}
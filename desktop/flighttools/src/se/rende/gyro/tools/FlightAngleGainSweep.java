@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import se.rende.gyro.FlightAngleARG;
+import se.rende.gyro.FlightAngleESKF;
+
+/**
+ * Replays IMU logs through FlightAngleARG for a grid of Kp and Ki values and
+ * ranks the gains by rms pitch and roll error against a reference.
+ * <p>
+ * Logs are in the ImuLog CSV format. Logs without reference columns use
+ * FlightAngleESKF run over the same log as reference. With no logs given, a
+ * set of synthetic logs with gyro bias and known true attitude is used.
+ * <p>
+ * Each (gains, log) pair is an independent replay on read only data, split
+ * over a fork/join pool, so the sweep scales with the number of cores.
+ * <p>
+ * Usage: FlightAngleGainSweep [-kp min,max,steps] [-ki min,max,steps]
+ * [-skip s] [-top n] [-threads n] [log.csv ...]
+ * <br>
+ * Ranges are geometric when min &gt; 0, else linear.
+ * @author dag
+ *
+ */
+public class FlightAngleGainSweep {
+	private static final int CHUNK = 4096; // samples per calculateBatch call
+
+	public static void main(String[] args) throws IOException {
+		double[] kps = range("0.02,2,9");
+		double[] kis = range("0,0.005,6");
+		double skipSeconds = 5;
+		int top = 10;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<ImuLog> logs = new ArrayList<ImuLog>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-kp")) {
+				kps = range(args[++i]);
+			} else if (args[i].equals("-ki")) {
+				kis = range(args[++i]);
+			} else if (args[i].equals("-skip")) {
+				skipSeconds = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-top")) {
+				top = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				logs.add(ImuLog.read(new File(args[i])));
+			}
+		}
+		if (logs.isEmpty()) {
+			for (int i = 0; i < 8; i++) {
+				// 5 minutes each, tilted start and a gyro bias for Ki to take out
+				logs.add(new ImuLog("synthetic" + i, new SyntheticImu(30000, 100, 0.3,
+						0.2, -0.1, 0.02, 0.01, 0.02, 4711 + i)));
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		ImuLog[] logArray = logs.toArray(new ImuLog[logs.size()]);
+		double[][][] reference = new double[logArray.length][][];
+		pool.invoke(new ReferenceTask(logArray, reference, 0, logArray.length));
+		long referenceNanos = System.nanoTime() - start;
+
+		double[][] gains = new double[kps.length * kis.length][];
+		for (int i = 0; i < kps.length; i++) {
+			for (int j = 0; j < kis.length; j++) {
+				gains[i * kis.length + j] = new double[] {kps[i], kis[j]};
+			}
+		}
+		Sweep sweep = new Sweep(logArray, reference, gains, skipSeconds);
+		start = System.nanoTime();
+		pool.invoke(new SweepTask(sweep, 0, gains.length * logArray.length));
+		long sweepNanos = System.nanoTime() - start;
+		pool.shutdown();
+
+		long samples = 0;
+		for (ImuLog log : logArray) {
+			samples += log.length;
+		}
+		System.out.printf("%d logs, %d samples, %d gain pairs, %d threads%n",
+				logArray.length, samples, gains.length, threads);
+		System.out.printf("reference %.2fs, sweep %.2fs, %.1f M samples/s%n",
+				referenceNanos * 1e-9, sweepNanos * 1e-9,
+				(double) samples * gains.length / sweepNanos * 1000);
+
+		final double[] rms = sweep.rms();
+		Integer[] order = new Integer[gains.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(rms[a], rms[b]);
+			}
+		});
+		System.out.println("rank        Kp        Ki  rms tilt error rad");
+		for (int i = 0; i < Math.min(top, order.length); i++) {
+			double[] g = gains[order[i]];
+			System.out.printf("%4d %9.4f %9.6f  %.5f%n", i + 1, g[0], g[1], rms[order[i]]);
+		}
+		double defaultRms = sweep.rms(FlightAngleARG.DEFAULT_KP, FlightAngleARG.DEFAULT_KI);
+		System.out.printf("default   %9.4f %9.6f  %.5f%n",
+				FlightAngleARG.DEFAULT_KP, FlightAngleARG.DEFAULT_KI, defaultRms);
+	}
+
+	/**
+	 * Parses min,max,steps into the values to sweep.
+	 */
+	static double[] range(String spec) {
+		String[] parts = spec.split(",");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("range must be min,max,steps: " + spec);
+		}
+		double min = Double.parseDouble(parts[0]);
+		double max = Double.parseDouble(parts[1]);
+		int steps = Integer.parseInt(parts[2]);
+		if (steps < 1) {
+			throw new IllegalArgumentException("range needs at least one step: " + spec);
+		}
+		double[] values = new double[steps];
+		for (int i = 0; i < steps; i++) {
+			double f = steps == 1 ? 0 : (double) i / (steps - 1);
+			values[i] = min > 0 ? min * Math.pow(max / min, f) : min + (max - min) * f;
+		}
+		return values;
+	}
+
+	/**
+	 * The read only input of the sweep and the squared error sums it produces,
+	 * one slot per (gains, log) pair so that tasks never share a slot.
+	 */
+	static class Sweep {
+		final ImuLog[] logs;
+		final double[][][] reference; // [log][pitch, roll][sample]
+		final double[][] gains;
+		final double skipSeconds;
+		final double[] squaredError;
+		final long[] count;
+
+		Sweep(ImuLog[] logs, double[][][] reference, double[][] gains, double skipSeconds) {
+			this.logs = logs;
+			this.reference = reference;
+			this.gains = gains;
+			this.skipSeconds = skipSeconds;
+			squaredError = new double[gains.length * logs.length];
+			count = new long[gains.length * logs.length];
+		}
+
+		/**
+		 * Replays one log with one gain pair.
+		 */
+		void run(int pair) {
+			int gainIndex = pair / logs.length;
+			int logIndex = pair % logs.length;
+			ImuLog log = logs[logIndex];
+			double[] refPitch = reference[logIndex][0];
+			double[] refRoll = reference[logIndex][1];
+			FlightAngleARG flightAngle = new FlightAngleARG(gains[gainIndex][0], gains[gainIndex][1]);
+			double[] pitch = new double[CHUNK];
+			double[] roll = new double[CHUNK];
+			double[] yaw = new double[CHUNK];
+			double t = 0;
+			double sum = 0;
+			long n = 0;
+			for (int offset = 0; offset < log.length; offset += CHUNK) {
+				int len = Math.min(CHUNK, log.length - offset);
+				flightAngle.calculateBatch(log.gx, log.gy, log.gz, log.ax, log.ay, log.az, log.dt,
+						offset, len, pitch, roll, yaw);
+				for (int i = 0; i < len; i++) {
+					t += log.dt[offset + i];
+					if (t >= skipSeconds) {
+						double dp = pitch[i] - refPitch[offset + i];
+						double dr = roll[i] - refRoll[offset + i];
+						sum += dp * dp + dr * dr;
+						n++;
+					}
+				}
+			}
+			squaredError[pair] = sum;
+			count[pair] = n;
+		}
+
+		/**
+		 * Returns rms error over all logs for each gain pair.
+		 */
+		double[] rms() {
+			double[] rms = new double[gains.length];
+			for (int g = 0; g < gains.length; g++) {
+				double sum = 0;
+				long n = 0;
+				for (int l = 0; l < logs.length; l++) {
+					sum += squaredError[g * logs.length + l];
+					n += count[g * logs.length + l];
+				}
+				rms[g] = n == 0 ? Double.NaN : Math.sqrt(sum / n);
+			}
+			return rms;
+		}
+
+		/**
+		 * Replays all logs with the given gains, outside the grid.
+		 */
+		double rms(double kp, double ki) {
+			Sweep single = new Sweep(logs, reference, new double[][] {{kp, ki}}, skipSeconds);
+			for (int l = 0; l < logs.length; l++) {
+				single.run(l);
+			}
+			return single.rms()[0];
+		}
+	}
+
+	/**
+	 * Runs the (gains, log) pairs from to to, halving until one pair is left.
+	 */
+	static class SweepTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Sweep sweep;
+		private final int from;
+		private final int to;
+
+		SweepTask(Sweep sweep, int from, int to) {
+			this.sweep = sweep;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SweepTask(sweep, from, mid), new SweepTask(sweep, mid, to));
+			} else if (to - from == 1) {
+				sweep.run(from);
+			}
+		}
+	}
+
+	/**
+	 * Fills in the reference pitch and roll of logs from to to, from the log
+	 * itself or from FlightAngleESKF.
+	 */
+	static class ReferenceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ImuLog[] logs;
+		private final double[][][] reference;
+		private final int from;
+		private final int to;
+
+		ReferenceTask(ImuLog[] logs, double[][][] reference, int from, int to) {
+			this.logs = logs;
+			this.reference = reference;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ReferenceTask(logs, reference, from, mid),
+						new ReferenceTask(logs, reference, mid, to));
+				return;
+			}
+			if (to == from) {
+				return;
+			}
+			ImuLog log = logs[from];
+			if (log.hasReference()) {
+				reference[from] = new double[][] {log.refPitch, log.refRoll};
+				return;
+			}
+			FlightAngleESKF eskf = new FlightAngleESKF();
+			double[] pitch = new double[log.length];
+			double[] roll = new double[log.length];
+			for (int i = 0; i < log.length; i++) {
+				eskf.calculate(log.gx[i], log.gy[i], log.gz[i], log.ax[i], log.ay[i], log.az[i], log.dt[i]);
+				double[] angles = eskf.getAngles();
+				pitch[i] = angles[0];
+				roll[i] = angles[1];
+			}
+			reference[from] = new double[][] {pitch, roll};
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import se.rende.gyro.GyroStreamServer;
+import se.rende.gyro.Histogram;
+
+/**
+ * Runs a GyroStreamServer with a stick controller, a number of telemetry
+ * viewers and one viewer that never reads, while telemetry lines are written
+ * to all at a fixed rate. The stick lines end in turn with \n, \r and \r\n.
+ * Checks what the server promises: every stick line gets through, writeLine()
+ * never waits for a client, and lines that do not fit a client's buffer are
+ * counted as dropped. Which lines the reading viewers lose is only reported,
+ * any client that falls a buffer behind drops lines, which happens to some on
+ * a busy or single cpu host. Exits with 1 on failure.
+ * <p>
+ * Usage: GyroStreamServerLoad [viewers] [seconds] [telemetry Hz] [line bytes]
+ * @author dag
+ *
+ */
+public class GyroStreamServerLoad {
+	private static final int STICK_HZ = 50;
+	private static final String[] LINE_ENDS = {"\n", "\r", "\r\n"};
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int viewers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+		// enough to fill the socket buffers of the stalled viewer too
+		int lineBytes = args.length > 3 ? Integer.parseInt(args[3]) : 4000;
+
+		ServerSocket free = new ServerSocket(0);
+		int port = free.getLocalPort();
+		free.close();
+		GyroStreamServer server = new GyroStreamServer("load", port);
+		final Histogram stickLatency = new Histogram(); // us
+		final AtomicLong sticksReceived = new AtomicLong();
+		final AtomicLong otherReceived = new AtomicLong(); // would be empty lines from a split \r\n
+		server.addMessageListener(new GyroStreamServer.MessageListener() {
+			public void message(int type, String text) {
+				if (type == GyroStreamServer.MESSAGE_RECEIVED_LINE && text.startsWith("s ")) {
+					long sent = Long.parseLong(text.substring(2));
+					stickLatency.record((System.nanoTime() - sent) / 1000);
+					sticksReceived.incrementAndGet();
+				} else if (type == GyroStreamServer.MESSAGE_RECEIVED_LINE) {
+					otherReceived.incrementAndGet();
+				}
+			}
+		});
+		server.start();
+
+		Viewer[] readers = new Viewer[viewers];
+		for (int i = 0; i < viewers; i++) {
+			readers[i] = new Viewer(new Socket("localhost", port));
+			readers[i].start();
+		}
+		Socket stalled = new Socket();
+		stalled.setReceiveBufferSize(4096);
+		stalled.connect(new java.net.InetSocketAddress("localhost", port));
+		Socket controller = new Socket("localhost", port);
+		controller.setTcpNoDelay(true);
+		Viewer controllerReader = new Viewer(controller);
+		controllerReader.start();
+		OutputStream sticks = controller.getOutputStream();
+		while (server.getConnectedClients().size() < viewers + 2) {
+			Thread.sleep(10);
+		}
+
+		StringBuilder sb = new StringBuilder("t");
+		while (sb.length() < lineBytes - 1) {
+			sb.append(" 0.123");
+		}
+		String line = sb.toString();
+		Histogram writeLineTime = new Histogram(); // us
+		long period = 1000000000L / rate;
+		long stickPeriod = 1000000000L / STICK_HZ;
+		long start = System.nanoTime();
+		long next = start;
+		long nextStick = start;
+		long written = 0;
+		long sticksSent = 0;
+		while (next - start < seconds * 1000000000L) {
+			long t = System.nanoTime();
+			server.writeLine(line);
+			writeLineTime.record((System.nanoTime() - t) / 1000);
+			written++;
+			if (next - nextStick >= 0) {
+				String end = LINE_ENDS[(int) (sticksSent % LINE_ENDS.length)];
+				sticks.write(("s " + System.nanoTime() + end).getBytes("US-ASCII"));
+				sticks.flush();
+				sticksSent++;
+				nextStick += stickPeriod;
+			}
+			next += period;
+			while (next - System.nanoTime() > 0) {
+				LockSupport.parkNanos(next - System.nanoTime());
+			}
+		}
+		Thread.sleep(500);
+
+		boolean ok = sticksReceived.get() == sticksSent && otherReceived.get() == 0;
+		System.out.printf("sticks: %d sent, %d received, %d other lines, latency us %s%n", sticksSent,
+				sticksReceived.get(), otherReceived.get(), stickLatency);
+		long minReceived = Long.MAX_VALUE;
+		for (Viewer viewer : readers) {
+			minReceived = Math.min(minReceived, viewer.lines.get());
+		}
+		minReceived = Math.min(minReceived, controllerReader.lines.get());
+		System.out.printf("telemetry: %d lines of %d bytes at %d Hz to %d viewers, controller and a stalled one, "
+				+ "fewest received by a reading client %d%n", written, lineBytes, rate, viewers, minReceived);
+		System.out.printf("writeLine us %s%n", writeLineTime);
+		System.out.print(server.getStats());
+		// a write waiting for the stalled viewer would wait until it closes after the run,
+		// a busy host only delays single writes some scheduling periods
+		ok &= writeLineTime.getMax() < 1000000 && server.getDroppedLineCount() > 0;
+		System.out.println(ok ? "ok" : "FAILED");
+		stalled.close();
+		server.stop();
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Counts telemetry lines from the server.
+	 */
+	static class Viewer extends Thread {
+		final Socket socket;
+		final AtomicLong lines = new AtomicLong();
+
+		Viewer(Socket socket) {
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("t ")) {
+						lines.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * A recorded IMU log, stored as struct of arrays like SyntheticImu.
+ * <p>
+ * The file format is CSV, one sample per line:
+ * <pre>
+ * t_ns,gx,gy,gz,ax,ay,az[,refPitch,refRoll]
+ * </pre>
+ * t_ns is the sensor timestamp in ns, gx to gz body rates in rad/s and ax to
+ * az accelerations in g, in the order and with the signs FlightService feeds
+ * FlightAngle.calculate(). The optional refPitch and refRoll columns hold a
+ * reference attitude in rad, for example from a motion capture system.
+ * Lines starting with # or a letter (a header) are skipped.
+ * @author dag
+ *
+ */
+public class ImuLog {
+	public final String name;
+	public final int length;
+	public final float[] gx, gy, gz;
+	public final float[] ax, ay, az;
+	/** seconds since previous sample, the first sample gets the median period */
+	public final float[] dt;
+	/** reference angles, null if the log has none */
+	public final double[] refPitch, refRoll;
+
+	private ImuLog(String name, int length, boolean hasReference) {
+		this.name = name;
+		this.length = length;
+		gx = new float[length];
+		gy = new float[length];
+		gz = new float[length];
+		ax = new float[length];
+		ay = new float[length];
+		az = new float[length];
+		dt = new float[length];
+		refPitch = hasReference ? new double[length] : null;
+		refRoll = hasReference ? new double[length] : null;
+	}
+
+	/**
+	 * Wraps a synthetic trace, with its true attitude as reference.
+	 */
+	public ImuLog(String name, SyntheticImu imu) {
+		this(name, imu.length, true);
+		System.arraycopy(imu.gx, 0, gx, 0, length);
+		System.arraycopy(imu.gy, 0, gy, 0, length);
+		System.arraycopy(imu.gz, 0, gz, 0, length);
+		System.arraycopy(imu.ax, 0, ax, 0, length);
+		System.arraycopy(imu.ay, 0, ay, 0, length);
+		System.arraycopy(imu.az, 0, az, 0, length);
+		System.arraycopy(imu.dt, 0, dt, 0, length);
+		System.arraycopy(imu.pitch, 0, refPitch, 0, length);
+		System.arraycopy(imu.roll, 0, refRoll, 0, length);
+	}
+
+	public boolean hasReference() {
+		return refPitch != null;
+	}
+
+	/**
+	 * Reads a log file.
+	 * @throws IOException if the file can not be read or a line is malformed
+	 */
+	public static ImuLog read(File file) throws IOException {
+		int capacity = 1024;
+		long[] t = new long[capacity];
+		double[][] columns = new double[8][capacity];
+		int count = 0;
+		int columnCount = -1;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#' || Character.isLetter(line.charAt(0))) {
+					continue;
+				}
+				String[] fields = line.split(",");
+				if (columnCount < 0) {
+					columnCount = fields.length;
+					if (columnCount != 7 && columnCount != 9) {
+						throw new IOException(file + ":" + lineNumber + ": expected 7 or 9 columns, got " + columnCount);
+					}
+				} else if (fields.length != columnCount) {
+					throw new IOException(file + ":" + lineNumber + ": expected " + columnCount + " columns, got " + fields.length);
+				}
+				if (count == capacity) {
+					capacity *= 2;
+					long[] newT = new long[capacity];
+					System.arraycopy(t, 0, newT, 0, count);
+					t = newT;
+					for (int c = 0; c < columns.length; c++) {
+						double[] column = new double[capacity];
+						System.arraycopy(columns[c], 0, column, 0, count);
+						columns[c] = column;
+					}
+				}
+				try {
+					t[count] = Long.parseLong(fields[0].trim());
+					for (int c = 1; c < columnCount; c++) {
+						columns[c - 1][count] = Double.parseDouble(fields[c].trim());
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+
+		ImuLog log = new ImuLog(file.getName(), count, columnCount == 9);
+		for (int i = 0; i < count; i++) {
+			log.gx[i] = (float) columns[0][i];
+			log.gy[i] = (float) columns[1][i];
+			log.gz[i] = (float) columns[2][i];
+			log.ax[i] = (float) columns[3][i];
+			log.ay[i] = (float) columns[4][i];
+			log.az[i] = (float) columns[5][i];
+			if (log.hasReference()) {
+				log.refPitch[i] = columns[6][i];
+				log.refRoll[i] = columns[7][i];
+			}
+			if (i > 0) {
+				log.dt[i] = (float) ((t[i] - t[i - 1]) * 1e-9);
+			}
+		}
+		if (count > 1) {
+			float[] sorted = new float[count - 1];
+			System.arraycopy(log.dt, 1, sorted, 0, count - 1);
+			Arrays.sort(sorted);
+			log.dt[0] = sorted[sorted.length / 2];
+		}
+		return log;
+	}
+
+	/**
+	 * Writes the log in the format read() takes, starting at timestamp 0.
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(file);
+		try {
+			writer.println(hasReference()
+					? "t_ns,gx,gy,gz,ax,ay,az,refPitch,refRoll"
+					: "t_ns,gx,gy,gz,ax,ay,az");
+			long t = 0;
+			for (int i = 0; i < length; i++) {
+				t += Math.round(dt[i] * 1e9);
+				writer.print(t);
+				writer.print(',');
+				writer.print(gx[i]);
+				writer.print(',');
+				writer.print(gy[i]);
+				writer.print(',');
+				writer.print(gz[i]);
+				writer.print(',');
+				writer.print(ax[i]);
+				writer.print(',');
+				writer.print(ay[i]);
+				writer.print(',');
+				writer.print(az[i]);
+				if (hasReference()) {
+					writer.print(',');
+					writer.print(refPitch[i]);
+					writer.print(',');
+					writer.print(refRoll[i]);
+				}
+				writer.println();
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("error writing " + file);
+		}
+	}
+}
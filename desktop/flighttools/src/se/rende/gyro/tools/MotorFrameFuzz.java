@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import se.rende.gyro.MotorCommandEncoder;
+import se.rende.gyro.MotorFrameEncoder;
+
+/**
+ * Sends MotorFrameEncoder frames mixed with ascii commands through the
+ * esc-control frame decoder built for the host, and checks what comes out.
+ * <p>
+ * First a clean stream, where every frame and command must come out exactly,
+ * then one with bit flipped frames, where no flipped frame may be accepted and
+ * the frames and commands lost after them are counted.
+ * <p>
+ * Build the C side first with make in avr/host, with MOTOR_COUNT=motors.
+ * <p>
+ * Usage: MotorFrameFuzz [decode program] [messages] [seed] [motors]
+ * @author dag
+ *
+ */
+public class MotorFrameFuzz {
+	private static final double[] POWERS = {-10, 0, 1, 127, 128, 165, 254, 255, 256, 1000};
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String decoder = args.length > 0 ? args[0] : "../../avr/host/motorframe-decode";
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 4711;
+		int motors = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+		boolean ok = run(decoder, messages, motors, new Random(seed), false);
+		ok &= run(decoder, messages, motors, new Random(seed + 1), true);
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Runs one stream through the decoder.
+	 * @return true if the decoder output is as expected
+	 */
+	static boolean run(String decoder, int messages, int motors, Random random, boolean flipBits)
+			throws IOException, InterruptedException {
+		MotorFrameEncoder frameEncoder = new MotorFrameEncoder();
+		MotorCommandEncoder commandEncoder = new MotorCommandEncoder();
+		final List<byte[]> chunks = new ArrayList<byte[]>();
+		List<String> expected = new ArrayList<String>();
+		Set<String> flipped = new HashSet<String>();
+		double[] power = new double[motors];
+		for (int n = 0; n < messages; n++) {
+			for (int i = 0; i < power.length; i++) {
+				power[i] = random.nextInt(4) == 0 ? POWERS[random.nextInt(POWERS.length)] : random.nextDouble() * 256;
+			}
+			if (random.nextInt(8) == 0) {
+				int length = commandEncoder.encode(power);
+				chunks.add(copy(commandEncoder.getBuffer(), length));
+				expected.add("A " + new String(commandEncoder.getBuffer(), 0, length - 1, "US-ASCII"));
+			} else {
+				int length = frameEncoder.encode(power);
+				byte[] frame = copy(frameEncoder.getBuffer(), length);
+				if (flipBits && random.nextInt(4) == 0) {
+					frame[1 + random.nextInt(length - 1)] ^= 1 << random.nextInt(8);
+					flipped.add(frameLine(frame));
+				} else {
+					expected.add(frameLine(frame));
+				}
+				chunks.add(frame);
+			}
+		}
+
+		final Process process = new ProcessBuilder(new File(decoder).getPath()).start();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = new BufferedOutputStream(process.getOutputStream());
+					for (byte[] chunk : chunks) {
+						out.write(chunk);
+					}
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+
+		// walk the output, each expected line must come in order
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "US-ASCII"));
+		int next = 0;
+		int lost = 0;
+		int extra = 0;
+		int flippedAccepted = 0;
+		String errors = "?";
+		List<String> pending = new ArrayList<String>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("E ")) {
+				errors = line.substring(2);
+				continue;
+			}
+			pending.add(line);
+			// match against the next expected lines, looking a little ahead for losses
+			int found = -1;
+			for (int i = next; i < Math.min(expected.size(), next + 16); i++) {
+				if (expected.get(i).equals(line)) {
+					found = i;
+					break;
+				}
+			}
+			if (found >= 0) {
+				pending.remove(pending.size() - 1);
+				lost += found - next;
+				extra += pending.size();
+				flippedAccepted += countFlipped(pending, flipped);
+				pending.clear();
+				next = found + 1;
+			}
+		}
+		in.close();
+		writer.join();
+		process.waitFor();
+		lost += expected.size() - next;
+		extra += pending.size();
+		flippedAccepted += countFlipped(pending, flipped);
+
+		boolean ok = flipBits ? flippedAccepted == 0 : lost == 0 && extra == 0;
+		System.out.printf("%s: %d messages, %d flipped, %d lost, %d extra, %d flipped accepted, %s crc errors - %s%n",
+				flipBits ? "bit flips" : "clean", chunks.size(), flipped.size(), lost, extra,
+				flippedAccepted, errors, ok ? "ok" : "FAILED");
+		return ok;
+	}
+
+	/**
+	 * @return number of unexpected lines that are flipped frames
+	 */
+	static int countFlipped(List<String> unexpected, Set<String> flipped) {
+		int count = 0;
+		for (String line : unexpected) {
+			if (flipped.contains(line)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	static String frameLine(byte[] frame) {
+		StringBuilder sb = new StringBuilder("F");
+		for (int i = 1; i < frame.length - 1; i++) {
+			sb.append(' ').append(frame[i] & 0xff);
+		}
+		return sb.toString();
+	}
+
+	static byte[] copy(byte[] buffer, int length) {
+		byte[] chunk = new byte[length];
+		System.arraycopy(buffer, 0, chunk, 0, length);
+		return chunk;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+import se.rende.gyro.EscEmulator;
+import se.rende.gyro.LinkStats;
+import se.rende.gyro.MotorFrameEncoder;
+import se.rende.gyro.StreamMotorLink;
+
+/**
+ * Sends motor frames at a fixed rate over each MotorLink transport to an
+ * emulated esc-control, and prints round trip, write blocking, throughput and
+ * ack loss from LinkStats for each:
+ * <ul>
+ * <li>loopback - in memory to an EscEmulator</li>
+ * <li>tcp - localhost socket to an EscEmulator</li>
+ * <li>pty - to avr/host/esc-emulator, if built</li>
+ * <li>device - to a board on a serial device, if given</li>
+ * </ul>
+ * The EscEmulator answers after the transfer time at the given baud rate, 0
+ * for none. Exits with 1 if a link fails or gets no answers.
+ * <p>
+ * Usage: MotorLinkBenchmark [frames] [rate Hz] [baud] [motors] [emulator program] [device]
+ * @author dag
+ *
+ */
+public class MotorLinkBenchmark {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int rate = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		int baud = args.length > 2 ? Integer.parseInt(args[2]) : 115200;
+		int motors = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		String program = args.length > 4 ? args[4] : "../../avr/host/esc-emulator";
+		String device = args.length > 5 ? args[5] : null;
+		boolean ok = true;
+
+		EscEmulator emulator = new EscEmulator(motors);
+		emulator.setBaudRate(baud);
+		ok &= run("loopback", StreamMotorLink.loopback(emulator), frames, rate, motors);
+
+		final ServerSocket server = new ServerSocket(0);
+		final EscEmulator tcpEmulator = new EscEmulator(motors);
+		tcpEmulator.setBaudRate(baud);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					socket.setTcpNoDelay(true);
+					tcpEmulator.start(socket.getInputStream(), socket.getOutputStream());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		acceptor.start();
+		ok &= run("tcp", StreamMotorLink.connect("localhost", server.getLocalPort()), frames, rate, motors);
+		server.close();
+
+		if (new File(program).canExecute()) {
+			Process process = new ProcessBuilder(program, "-pty").start();
+			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "US-ASCII"));
+			String pty = in.readLine();
+			if (pty == null) {
+				System.out.println("pty: " + program + " gave no pty");
+				ok = false;
+			} else {
+				ok &= run("pty", StreamMotorLink.open(new File(pty)), frames, rate, motors);
+			}
+			process.destroy();
+		} else {
+			System.out.println("pty: skipped, build " + program + " with make in avr/host");
+		}
+
+		if (device != null) {
+			ok &= run("device", StreamMotorLink.open(new File(device)), frames, rate, motors);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Sends frames at rate, waits for the last answers and prints the stats.
+	 * @return true if the link stayed up and frames were acknowledged
+	 */
+	static boolean run(String name, StreamMotorLink link, int frames, int rate, int motors) {
+		MotorFrameEncoder encoder = new MotorFrameEncoder();
+		double[] power = new double[motors];
+		long period = 1000000000L / rate;
+		long next = System.nanoTime();
+		for (int n = 0; n < frames; n++) {
+			for (int i = 0; i < motors; i++) {
+				power[i] = (n * (i + 1)) % 256;
+			}
+			int length = encoder.encode(power, motors);
+			link.write(encoder.getBuffer(), 0, length);
+			next += period;
+			while (next - System.nanoTime() > 0) {
+				LockSupport.parkNanos(next - System.nanoTime());
+			}
+		}
+		LockSupport.parkNanos(LinkStats.ACK_TIMEOUT_NS / 2);
+		LinkStats stats = link.getLinkStats();
+		if (stats == null) {
+			System.out.printf("%s: link closed - FAILED %s%n", name, link.getFailure());
+			link.close();
+			return false;
+		}
+		boolean ok = link.isConnected() && stats.getAckedCount() > 0;
+		System.out.printf("%s: %d frames at %d Hz, %d written, %d dropped, %d acked, %d lost, %.2f%% loss%n",
+				name, frames, rate, link.getWrittenFrameCount(), link.getDroppedFrameCount(),
+				stats.getAckedCount(), stats.getLostCount(), 100 * stats.getAckLossRate());
+		System.out.printf("  rtt us %s%n", stats.getRoundTrip());
+		System.out.printf("  write blocking us %s%n", stats.getWriteBlocking());
+		System.out.printf("  %.0f frames/s, %.0f bytes/s written, %.0f bytes/s read%s%n",
+				stats.getFramesPerSecond(), stats.getBytesPerSecond(), stats.getBytesReadPerSecond(),
+				ok ? "" : " - FAILED " + link.getFailure());
+		link.close();
+		return ok;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.util.Random;
+
+import se.rende.gyro.MotorMixer;
+
+/**
+ * Checks MotorMixer: quad X gives the same powers as the mix it replaced
+ * when nothing saturates, every geometry keeps powers within limits, a
+ * desaturated mix keeps the thrust and scales all forces alike, and a pure
+ * pitch, roll or yaw force leaves the total thrust unchanged. Exits with 1
+ * on failure.
+ * <p>
+ * Usage: MotorMixerCheck [mixes]
+ * @author dag
+ *
+ */
+public class MotorMixerCheck {
+	private static final MotorMixer[] MIXERS = {
+		MotorMixer.QUAD_X, MotorMixer.QUAD_PLUS, MotorMixer.HEXA, MotorMixer.OCTO};
+	private static final double EPSILON = 1e-9;
+
+	public static void main(String[] args) {
+		int mixes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		boolean ok = checkQuadX(mixes);
+		for (MotorMixer mixer : MIXERS) {
+			ok &= checkBalance(mixer);
+			ok &= checkLimits(mixer, mixes);
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * The four hand written lines of FlightService before the mixer.
+	 */
+	static boolean checkQuadX(int mixes) {
+		Random random = new Random(1);
+		double[] power = new double[MotorMixer.MAX_MOTORS];
+		double[] old = new double[4];
+		for (int n = 0; n < mixes; n++) {
+			double up = 60 + random.nextDouble() * 120;
+			double pitch = random.nextGaussian() * 15;
+			double roll = random.nextGaussian() * 15;
+			double yaw = random.nextGaussian() * 15;
+			old[3] = up - pitch + roll - yaw;
+			old[2] = up - pitch - roll + yaw;
+			old[1] = up + pitch + roll + yaw;
+			old[0] = up + pitch - roll - yaw;
+			boolean saturated = false;
+			for (double p : old) {
+				saturated |= p < 0 || p > 255;
+			}
+			MotorMixer.QUAD_X.mix(up, pitch, roll, yaw, 0, 255, power);
+			for (int m = 0; m < 4 && !saturated; m++) {
+				if (Math.abs(power[m] - old[m]) > EPSILON) {
+					System.out.println("quadx motor " + m + " " + power[m] + ", old mix " + old[m]);
+					return false;
+				}
+			}
+		}
+		System.out.println("quadx: same as the old mix when not saturated");
+		return true;
+	}
+
+	/**
+	 * A force on one axis alone must not change the total thrust.
+	 */
+	static boolean checkBalance(MotorMixer mixer) {
+		double[] power = new double[MotorMixer.MAX_MOTORS];
+		for (int axis = 0; axis < 3; axis++) {
+			mixer.mix(100, axis == 0 ? 10 : 0, axis == 1 ? 10 : 0, axis == 2 ? 10 : 0, 0, 255, power);
+			double sum = 0;
+			for (int m = 0; m < mixer.getMotorCount(); m++) {
+				sum += power[m];
+			}
+			if (Math.abs(sum - 100 * mixer.getMotorCount()) > EPSILON) {
+				System.out.println(mixer.getName() + ": axis " + axis + " changes total thrust to " + sum);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean checkLimits(MotorMixer mixer, int mixes) {
+		Random random = new Random(2);
+		double[] power = new double[MotorMixer.MAX_MOTORS];
+		double[] unlimited = new double[MotorMixer.MAX_MOTORS];
+		int desaturated = 0;
+		for (int n = 0; n < mixes; n++) {
+			double up = random.nextDouble() * 280 - 10;
+			double pitch = random.nextGaussian() * 60;
+			double roll = random.nextGaussian() * 60;
+			double yaw = random.nextGaussian() * 60;
+			double scale = mixer.mix(up, pitch, roll, yaw, 0, 255, power);
+			double thrust = Math.max(0, Math.min(255, up));
+			mixer.mix(thrust, pitch, roll, yaw, -1e9, 1e9, unlimited);
+			boolean atLimit = false;
+			for (int m = 0; m < mixer.getMotorCount(); m++) {
+				if (power[m] < -EPSILON || power[m] > 255 + EPSILON) {
+					System.out.println(mixer.getName() + ": motor " + m + " at " + power[m]);
+					return false;
+				}
+				// forces scaled alike around the thrust
+				double expected = thrust + (unlimited[m] - thrust) * scale;
+				if (Math.abs(power[m] - expected) > 1e-6) {
+					System.out.println(mixer.getName() + ": motor " + m + " " + power[m] + " not scaled, expected " + expected);
+					return false;
+				}
+				atLimit |= power[m] < EPSILON || power[m] > 255 - EPSILON;
+			}
+			if (scale < 1) {
+				desaturated++;
+				if (!atLimit) {
+					System.out.println(mixer.getName() + ": scaled by " + scale + " with no motor at a limit");
+					return false;
+				}
+			}
+		}
+		System.out.printf("%s: %d motors within limits, %d of %d mixes desaturated%n",
+				mixer.getName(), mixer.getMotorCount(), desaturated, mixes);
+		return true;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.util.Random;
+
+/**
+ * A synthetic IMU trace with known true attitude, stored as struct of arrays.
+ * Sample i is fed to a FlightAngle as
+ * calculate(gx[i], gy[i], gz[i], ax[i], ay[i], az[i], dt[i]).
+ * @author dag
+ *
+ */
+public class SyntheticImu {
+	public final int length;
+	public final float[] gx, gy, gz;
+	public final float[] ax, ay, az;
+	public final float[] dt;
+	/** true angles after sample i, same order and formulas as FlightAngle.getAngles() */
+	public final double[] pitch, roll, yaw;
+
+	/**
+	 * Simulates a craft rocking on all axes around a fixed tilt.
+	 * @param length number of samples
+	 * @param rate sample rate in Hz
+	 * @param amplitude peak roll and pitch swing in rad, yaw swings twice as much
+	 * @param meanRoll roll to rock around, in rad
+	 * @param meanPitch pitch to rock around, in rad
+	 * @param gyroBias constant bias added to all gyro axes, in rad/s
+	 * @param gyroNoise gyro noise standard deviation, in rad/s
+	 * @param accelNoise accel noise standard deviation, in g
+	 * @param seed random seed
+	 */
+	public SyntheticImu(int length, double rate, double amplitude,
+			double meanRoll, double meanPitch, double gyroBias,
+			double gyroNoise, double accelNoise, long seed) {
+		this.length = length;
+		gx = new float[length];
+		gy = new float[length];
+		gz = new float[length];
+		ax = new float[length];
+		ay = new float[length];
+		az = new float[length];
+		dt = new float[length];
+		pitch = new double[length];
+		roll = new double[length];
+		yaw = new double[length];
+
+		Random random = new Random(seed);
+		double period = 1 / rate;
+		double[] q = new double[4];
+		double[] prev = new double[4];
+		double t = 0;
+		attitude(t, amplitude, meanRoll, meanPitch, prev);
+
+		for (int i = 0; i < length; i++) {
+			// sample time jitters like android sensor delivery
+			double h = period * (1 + 0.2 * (random.nextDouble() - 0.5));
+			t += h;
+			attitude(t, amplitude, meanRoll, meanPitch, q);
+
+			// body rate that turns prev into q in time h, conj(prev) * q = exp(w * h / 2)
+			double r0 = prev[0] * q[0] + prev[1] * q[1] + prev[2] * q[2] + prev[3] * q[3];
+			double r1 = prev[0] * q[1] - prev[1] * q[0] - prev[2] * q[3] + prev[3] * q[2];
+			double r2 = prev[0] * q[2] + prev[1] * q[3] - prev[2] * q[0] - prev[3] * q[1];
+			double r3 = prev[0] * q[3] - prev[1] * q[2] + prev[2] * q[1] - prev[3] * q[0];
+			double rn = Math.sqrt(r1 * r1 + r2 * r2 + r3 * r3);
+			double scale = rn > 0 ? 2 * Math.atan2(rn, r0) / rn / h : 2 / h;
+			double wx = r1 * scale, wy = r2 * scale, wz = r3 * scale;
+			System.arraycopy(q, 0, prev, 0, 4);
+
+			double q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+			gx[i] = (float) (wx + gyroBias + gyroNoise * random.nextGaussian());
+			gy[i] = (float) (wy + gyroBias + gyroNoise * random.nextGaussian());
+			gz[i] = (float) (wz + gyroBias + gyroNoise * random.nextGaussian());
+			// accelerometer reads the reaction to gravity, z down as FlightService feeds it
+			ax[i] = (float) (-2 * (q1 * q3 - q0 * q2) + accelNoise * random.nextGaussian());
+			ay[i] = (float) (-2 * (q0 * q1 + q2 * q3) + accelNoise * random.nextGaussian());
+			az[i] = (float) (-(q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3) + accelNoise * random.nextGaussian());
+			dt[i] = (float) h;
+
+			roll[i] = Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1 * q1 + q2 * q2));
+			pitch[i] = Math.asin(2 * (q0 * q2 - q1 * q3));
+			yaw[i] = Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2 * q2 + q3 * q3));
+		}
+	}
+
+	/**
+	 * Sets q to the true attitude at time t.
+	 */
+	private static void attitude(double t, double amplitude, double meanRoll, double meanPitch, double[] q) {
+		double r = meanRoll + amplitude * Math.sin(2 * Math.PI * 0.7 * t);
+		double p = meanPitch + amplitude * Math.sin(2 * Math.PI * 0.5 * t + 1);
+		double y = 2 * amplitude * Math.sin(2 * Math.PI * 0.1 * t);
+		double cr = Math.cos(r / 2), sr = Math.sin(r / 2);
+		double cp = Math.cos(p / 2), sp = Math.sin(p / 2);
+		double cy = Math.cos(y / 2), sy = Math.sin(y / 2);
+		q[0] = cr * cp * cy + sr * sp * sy;
+		q[1] = sr * cp * cy - cr * sp * sy;
+		q[2] = cr * sp * cy + sr * cp * sy;
+		q[3] = cr * cp * sy - sr * sp * cy;
+	}
+
+	/**
+	 * A level start, moderate motion and typical phone sensor noise at 100Hz.
+	 */
+	public static SyntheticImu typical(int length) {
+		return new SyntheticImu(length, 100, 0.3, 0, 0, 0, 0.01, 0.02, 4711);
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Dag Rende
+ *
+ * Licensed under the GNU General Public License v3
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Dag Rende
+ */
+
+package se.rende.gyro.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import se.rende.gyro.TelemetryDecoder;
+
+/**
+ * Encodes random telemetry with the esc-control encoder built for the host,
+ * and feeds the output to TelemetryDecoder in random sized reads, as
+ * bluetooth delivers it. Every frame and every "ch" text line must come out
+ * in order. Then the same stream with bit flips, where no flipped frame may be
+ * accepted. Last checks that decoding allocates nothing. Exits with 1 on
+ * failure.
+ * <p>
+ * Build the C side first with make in avr/host, with MOTOR_COUNT=motors.
+ * <p>
+ * Usage: TelemetryCheck [decode program] [frames] [seed] [motors]
+ * @author dag
+ *
+ */
+public class TelemetryCheck {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String program = args.length > 0 ? args[0] : "../../avr/host/motorframe-decode";
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 4711;
+		int motors = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		Random random = new Random(seed);
+
+		List<String> expected = new ArrayList<String>();
+		StringBuilder input = new StringBuilder();
+		for (int n = 0; n < frames; n++) {
+			StringBuilder line = new StringBuilder();
+			line.append(random.nextInt(256)).append(' ').append(random.nextInt(4)).append(' ')
+					.append(random.nextInt(256));
+			for (int i = 0; i < motors; i++) {
+				line.append(' ').append(random.nextInt(256));
+			}
+			input.append(line).append('\n');
+			expected.add("T " + line);
+			expected.add("X ch");
+		}
+		byte[] stream = encode(program, input.toString());
+
+		Collector collector = new Collector();
+		TelemetryDecoder decoder = new TelemetryDecoder();
+		decoder.setListener(collector);
+		feed(decoder, stream, random);
+		boolean ok = collector.lines.equals(expected) && decoder.getErrorCount() == 0;
+		System.out.printf("clean: %d frames, %d decoded, %d lines, %d errors - %s%n",
+				frames, decoder.getFrameCount(), collector.lines.size(), decoder.getErrorCount(),
+				ok ? "ok" : "FAILED");
+
+		// flip one bit in some frames, none of them may come out
+		collector = new Collector();
+		decoder = new TelemetryDecoder();
+		decoder.setListener(collector);
+		int frameLength = 5 + motors;
+		int step = frameLength + 4; // frame and "ch\r\n"
+		Set<String> flipped = new HashSet<String>();
+		List<String> kept = new ArrayList<String>();
+		for (int n = 0; n < frames; n++) {
+			if (random.nextInt(4) == 0) {
+				stream[n * step + 1 + random.nextInt(frameLength - 1)] ^= 1 << random.nextInt(8);
+				flipped.add(frameLine(stream, n * step, frameLength));
+			} else {
+				kept.add(expected.get(2 * n));
+			}
+		}
+		feed(decoder, stream, random);
+		// walk the decoded frames, the kept ones must come in order
+		int next = 0;
+		int lost = 0;
+		int spurious = 0;
+		int flippedAccepted = 0;
+		for (String line : collector.lines) {
+			if (!line.startsWith("T ")) {
+				continue;
+			}
+			int found = kept.subList(next, Math.min(kept.size(), next + 16)).indexOf(line);
+			if (found >= 0) {
+				lost += found;
+				next += found + 1;
+			} else if (flipped.contains(line)) {
+				flippedAccepted++;
+			} else {
+				// crc matched by chance while resynchronizing
+				spurious++;
+			}
+		}
+		lost += kept.size() - next;
+		boolean flipOk = flippedAccepted == 0;
+		System.out.printf("bit flips: %d flipped, %d lost, %d spurious, %d flipped accepted, %d errors - %s%n",
+				flipped.size(), lost, spurious, flippedAccepted, decoder.getErrorCount(),
+				flipOk ? "ok" : "FAILED");
+		ok &= flipOk;
+
+		ok &= checkAllocation(stream, motors);
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Runs the host encoder in telemetry mode.
+	 * @return its output
+	 */
+	static byte[] encode(String program, final String input) throws IOException, InterruptedException {
+		final Process process = new ProcessBuilder(new File(program).getPath(), "-telemetry").start();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = process.getOutputStream();
+					out.write(input.getBytes("US-ASCII"));
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			bytes.write(buffer, 0, n);
+		}
+		writer.join();
+		process.waitFor();
+		return bytes.toByteArray();
+	}
+
+	static void feed(TelemetryDecoder decoder, byte[] stream, Random random) {
+		for (int offset = 0; offset < stream.length;) {
+			int length = Math.min(1 + random.nextInt(40), stream.length - offset);
+			decoder.feed(stream, offset, length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * Returns true if decoding the stream again allocates nothing.
+	 * Needs a HotSpot JVM for per thread allocation counting.
+	 */
+	static boolean checkAllocation(byte[] stream, int motors) {
+		TelemetryDecoder decoder = new TelemetryDecoder();
+		final int[] sum = new int[1];
+		decoder.setListener(new TelemetryDecoder.Listener() {
+			public void telemetryReceived(TelemetryDecoder.Telemetry telemetry) {
+				sum[0] += telemetry.seq + telemetry.speed[0];
+			}
+
+			public void textReceived(byte[] line, int length) {
+				sum[0] += length;
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			decoder.feed(stream, 0, stream.length);
+		}
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		long overhead = threads.getThreadAllocatedBytes(threadId) - before;
+		before = threads.getThreadAllocatedBytes(threadId);
+		for (int offset = 0; offset < stream.length; offset += 37) {
+			decoder.feed(stream, offset, Math.min(37, stream.length - offset));
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before - overhead;
+		System.out.printf("decoding %d bytes allocated %d bytes%n", stream.length, allocated);
+		return allocated == 0 && sum[0] != 0;
+	}
+
+	/**
+	 * @return the frame at offset as a Collector line
+	 */
+	static String frameLine(byte[] stream, int offset, int length) {
+		StringBuilder sb = new StringBuilder("T ");
+		sb.append(stream[offset + 1] & 0xff).append(' ').append(stream[offset + 2] & 0x0f);
+		for (int i = 3; i < length - 1; i++) {
+			sb.append(' ').append(stream[offset + i] & 0xff);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Keeps everything decoded as lines "T seq flags ticks m0 .." and "X text".
+	 */
+	static class Collector implements TelemetryDecoder.Listener {
+		final List<String> lines = new ArrayList<String>();
+
+		public void telemetryReceived(TelemetryDecoder.Telemetry telemetry) {
+			StringBuilder sb = new StringBuilder("T ");
+			sb.append(telemetry.seq).append(' ').append(telemetry.flags).append(' ').append(telemetry.ticks);
+			for (int i = 0; i < telemetry.motorCount; i++) {
+				sb.append(' ').append(telemetry.speed[i]);
+			}
+			lines.add(sb.toString());
+		}
+
+		public void textReceived(byte[] line, int length) {
+			lines.add("X " + new String(line, 0, length));
+		}
+	}
+}